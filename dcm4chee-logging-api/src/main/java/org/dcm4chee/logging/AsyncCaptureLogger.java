@@ -0,0 +1,174 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background thread which logs the data captured by LoggingBufferedOutputStreams in async log mode,
+ * so the transformation and logging of the data does not delay the writes to the stream.
+ * 
+ * The captured chunks wait in a bounded queue. If the queue is full, the chunk is dropped and counted,
+ * the writing thread never waits for the logging.
+ * All chunks are logged by one thread, in the order they were captured. The thread is started by the first chunk 
+ * and restarted if it has died. shutdown stops the thread, e.g. on undeployment of the application which uses 
+ * the default logger.
+ */
+public class AsyncCaptureLogger {
+
+    private static AsyncCaptureLogger defaultLogger;
+    private static final Chunk STOP = new Chunk() {
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public void discard() {
+        }
+    };
+
+    private final BlockingQueue<Chunk> queue;
+    private final AtomicLong droppedChunks = new AtomicLong();
+    private final String threadName;
+    private volatile Thread thread;
+    private volatile boolean shutdown;
+
+    public AsyncCaptureLogger(int queueSize, String threadName) {
+        if (queueSize <= 0)
+            throw new IllegalArgumentException("queueSize <= 0");
+        this.queue = new ArrayBlockingQueue<Chunk>(queueSize);
+        this.threadName = threadName;
+    }
+
+    /**
+     * @return Shared logger with a queue of 1024 chunks. A new one is created after the shared logger was shut down.
+     */
+    public static synchronized AsyncCaptureLogger getDefault() {
+        if (defaultLogger == null)
+            defaultLogger = new AsyncCaptureLogger(1024, "AsyncCaptureLogger");
+        return defaultLogger;
+    }
+
+    /**
+     * @return Number of chunks dropped because the queue was full.
+     */
+    public long getDroppedChunks() {
+        return droppedChunks.get();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Queue the logging of a captured chunk without waiting.
+     * 
+     * @return false if the chunk was dropped because the queue is full or the logger is shut down.
+     */
+    boolean offer(Chunk chunk) {
+        Thread t = thread;
+        if (t == null || !t.isAlive())
+            start();
+        if (!shutdown && queue.offer(chunk))
+            return true;
+        droppedChunks.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Stop the thread after the chunk it is logging. Chunks still queued and chunks offered later are dropped.
+     */
+    public void shutdown() {
+        synchronized (AsyncCaptureLogger.class) {
+            if (defaultLogger == this)
+                defaultLogger = null;
+        }
+        synchronized (this) {
+            shutdown = true;
+            thread = null;
+        }
+        queue.offer(STOP);
+    }
+
+    private synchronized void start() {
+        if (shutdown || thread != null && thread.isAlive())
+            return;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!shutdown) {
+                    Chunk chunk;
+                    try {
+                        chunk = queue.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        chunk.run();
+                    } catch (Throwable e) {
+                        // a failing chunk must not end the thread
+                        droppedChunks.incrementAndGet();
+                    }
+                }
+                for (Chunk chunk; (chunk = queue.poll()) != null;)
+                    if (chunk != STOP) {
+                        droppedChunks.incrementAndGet();
+                        chunk.discard();
+                    }
+            }
+        }, threadName);
+        t.setDaemon(true);
+        // do not keep the class loader of the application which logged the first chunk
+        t.setContextClassLoader(AsyncCaptureLogger.class.getClassLoader());
+        t.start();
+        thread = t;
+    }
+
+    /**
+     * Captured data waiting in the queue.
+     */
+    interface Chunk extends Runnable {
+
+        /**
+         * Called instead of run if the chunk is dropped by shutdown.
+         */
+        void discard();
+    }
+}
@@ -0,0 +1,267 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.dcm4chee.logging.MdcSplittingAppender.FileLayout;
+
+/**
+ * Enforces maximum age and maximum total size of the log files written by MdcSplittingAppender.
+ * 
+ * Each run (tick) of the janitor processes at most filesPerTick directory entries, so a walk over the log 
+ * directories is spread over several ticks. Files older than maxAge are deleted when they are visited. 
+ * After a complete walk, the oldest files are deleted until the total size is below maxBytes 
+ * (again at most filesPerTick per tick).
+ * 
+ * The log directories may be shared with other handlers and applications (e.g. jboss.server.log.dir), so only
+ * files the handler writes are considered: [filename].log and [filename].log.gz in the subdirectories of the 
+ * fileLayout (e.g. 3f/a0 or 2013/04/30/09), segment and index files with storage SEGMENT, and [filename].log and 
+ * [filename].log.gz directly in the log directory with fileLayout FLAT only if the log directory is dedicated to 
+ * the handler. Only subdirectories whose names match the fileLayout are walked, and only these are removed 
+ * when empty. Files of open transactions, the current segment files and files matching the exclude pattern 
+ * are never deleted.
+ */
+final class LogJanitor implements Runnable {
+
+    private static final Pattern YEAR = Pattern.compile("\\d{4}");
+    private static final Pattern TWO_DIGITS = Pattern.compile("\\d{2}");
+    private static final Pattern HEX = Pattern.compile("[0-9a-f]{2}");
+
+    private final MdcSplittingAppender appender;
+    private final Pattern[] levels;
+    private final boolean segments;
+    private final boolean flatFiles;
+    private final long maxAge;
+    private final long maxBytes;
+    private final int filesPerTick;
+    private final Pattern exclude;
+    private final Set<File> baseDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private final ArrayDeque<Dir> pendingDirs = new ArrayDeque<Dir>();
+    private final ArrayList<LogFile> logFiles = new ArrayList<LogFile>();
+    private Dir currentDir;
+    private String[] currentNames;
+    private int currentIndex;
+    private long totalBytes;
+    private int deleteIndex = -1;
+    private volatile long deletedFiles;
+
+    /**
+     * @param layout           Layout of the subdirectories of the log files, ignored if segments is true.
+     * @param segments         true if the log files are segment files (storage SEGMENT).
+     * @param dedicatedLogDir  true if the log directories only contain log files of the handler, so log files 
+     *                         directly in the log directories (layout FLAT) are considered.
+     */
+    LogJanitor(MdcSplittingAppender appender, FileLayout layout, boolean segments, boolean dedicatedLogDir, 
+            long maxAge, long maxBytes, int filesPerTick, String exclude) {
+        this.appender = appender;
+        this.levels = segments ? new Pattern[0] : levels(layout);
+        this.segments = segments;
+        this.flatFiles = dedicatedLogDir;
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+        this.filesPerTick = filesPerTick;
+        this.exclude = exclude == null || exclude.length() == 0 ? null : Pattern.compile(exclude);
+    }
+
+    /**
+     * @return Patterns of the names of the subdirectories of the layout, from the log directory down.
+     */
+    private static Pattern[] levels(FileLayout layout) {
+        switch (layout) {
+        case HASH:
+            return new Pattern[] { HEX, HEX };
+        case TIME:
+            return new Pattern[] { YEAR, TWO_DIGITS, TWO_DIGITS, TWO_DIGITS };
+        case TIME_HASH:
+            return new Pattern[] { YEAR, TWO_DIGITS, TWO_DIGITS, TWO_DIGITS, HEX, HEX };
+        default:
+            return new Pattern[0];
+        }
+    }
+
+    /**
+     * @return false if no files of given layout are considered (layout FLAT without dedicated log directory).
+     */
+    boolean hasLogFiles() {
+        return segments || levels.length > 0 || flatFiles;
+    }
+
+    void addDirectory(File dir) {
+        baseDirs.add(dir);
+    }
+
+    long getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    @Override
+    public void run() {
+        Set<File> activeFiles = appender.activeFiles();
+        if (deleteIndex >= 0) {
+            deleteOldest(activeFiles, filesPerTick);
+            return;
+        }
+        if (currentNames == null && pendingDirs.isEmpty())
+            startWalk();
+        for (int budget = filesPerTick; budget > 0; budget--) {
+            if (currentNames != null && currentIndex < currentNames.length) {
+                visit(new File(currentDir.file, currentNames[currentIndex++]), currentDir.depth, activeFiles);
+            } else if (!pendingDirs.isEmpty()) {
+                listDirectory(pendingDirs.pop());
+            } else {
+                endWalk();
+                return;
+            }
+        }
+    }
+
+    private void startWalk() {
+        for (File dir : baseDirs)
+            pendingDirs.add(new Dir(dir, 0));
+        logFiles.clear();
+        totalBytes = 0;
+    }
+
+    private void listDirectory(Dir dir) {
+        String[] names = dir.file.list();
+        if (names != null && names.length == 0 && dir.depth > 0) {
+            // only subdirectories matching the layout are walked
+            dir.file.delete();
+        }
+        currentDir = dir;
+        currentNames = names == null ? new String[0] : names;
+        currentIndex = 0;
+    }
+
+    /**
+     * @param depth Depth of the directory of the file below the log directory.
+     */
+    private void visit(File file, int depth, Set<File> activeFiles) {
+        String name = file.getName();
+        if (depth < levels.length) {
+            if (levels[depth].matcher(name).matches() && file.isDirectory())
+                pendingDirs.push(new Dir(file, depth + 1));
+            return;
+        }
+        if (!isLogFile(name, depth))
+            return;
+        if (exclude != null && exclude.matcher(name).matches() || activeFiles.contains(file))
+            return;
+        long lastModified = file.lastModified();
+        if (maxAge > 0 && System.currentTimeMillis() - lastModified > maxAge) {
+            delete(file);
+        } else if (maxBytes > 0) {
+            long length = file.length();
+            logFiles.add(new LogFile(file, lastModified, length));
+            totalBytes += length;
+        }
+    }
+
+    private void endWalk() {
+        currentNames = null;
+        if (maxBytes > 0 && totalBytes > maxBytes) {
+            Collections.sort(logFiles, new Comparator<LogFile>() {
+                @Override
+                public int compare(LogFile f1, LogFile f2) {
+                    return f1.lastModified < f2.lastModified ? -1 : f1.lastModified == f2.lastModified ? 0 : 1;
+                }
+            });
+            deleteIndex = 0;
+        } else {
+            logFiles.clear();
+        }
+    }
+
+    private void deleteOldest(Set<File> activeFiles, int budget) {
+        for (; budget > 0 && totalBytes > maxBytes && deleteIndex < logFiles.size(); budget--) {
+            LogFile logFile = logFiles.get(deleteIndex++);
+            if (!activeFiles.contains(logFile.file) && delete(logFile.file))
+                totalBytes -= logFile.length;
+        }
+        if (totalBytes <= maxBytes || deleteIndex >= logFiles.size()) {
+            deleteIndex = -1;
+            logFiles.clear();
+        }
+    }
+
+    private boolean delete(File file) {
+        if (file.delete()) {
+            deletedFiles++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isLogFile(String name, int depth) {
+        if (segments)
+            return name.startsWith(SegmentLogStore.PREFIX) 
+                && (name.endsWith(SegmentLogStore.SEGMENT_SUFFIX) || name.endsWith(SegmentLogStore.INDEX_SUFFIX));
+        return (depth > 0 || flatFiles) && (name.endsWith(".log") || name.endsWith(".log.gz"));
+    }
+
+    private static final class Dir {
+        private final File file;
+        private final int depth;
+
+        private Dir(File file, int depth) {
+            this.file = file;
+            this.depth = depth;
+        }
+    }
+
+    private static final class LogFile {
+        private final File file;
+        private final long lastModified;
+        private final long length;
+
+        private LogFile(File file, long lastModified, long length) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
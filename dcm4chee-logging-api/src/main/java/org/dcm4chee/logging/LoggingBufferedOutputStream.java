@@ -40,10 +40,9 @@ package org.dcm4chee.logging;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 
 public class LoggingBufferedOutputStream extends FilterOutputStream {
@@ -51,15 +50,8 @@ public class LoggingBufferedOutputStream extends FilterOutputStream {
     private byte buf[];
     private int count;
 
-    private boolean enableLog;
-    private boolean enableActivityLog = false;
-    private String msgHeader;
-    
-    private Charset charset = Charset.forName("ISO-8859-1");
-    private int maxLogLen = Integer.MAX_VALUE;
-    
-    private Logger log;
-    private ByteArrayTransformer transformer;
+    private final WriteCapture capture;
+    private final Logger log;
     
     public LoggingBufferedOutputStream(OutputStream out, Logger logger, String msgHeader) {
         this(out, logger, msgHeader, null, 8192);
@@ -67,7 +59,6 @@ public class LoggingBufferedOutputStream extends FilterOutputStream {
 
     public LoggingBufferedOutputStream(OutputStream out, Logger logger, String msgHeader, int bufSize) {
         this(out, logger, msgHeader, null, bufSize);
-        log = logger;
     }
     public LoggingBufferedOutputStream(OutputStream out, Logger logger, String msgHeader, ByteArrayTransformer transformer) {
         this(out, logger, msgHeader, transformer, 8192);
@@ -79,49 +70,77 @@ public class LoggingBufferedOutputStream extends FilterOutputStream {
             throw new IllegalArgumentException("Buffer size <= 0");
         }
         buf = new byte[bufSize];
-        this.msgHeader = msgHeader;
         log = logger;
-        this.transformer = transformer == null ? new ByteArrayStringTransformer() : transformer;
+        capture = new WriteCapture(logger, msgHeader, transformer, bufSize);
     }
 
     public LoggingBufferedOutputStream setEnableLog(boolean enableLog) throws IOException {
-        if (enableActivityLog)
+        if (capture.enableActivityLog)
             log.debug("##### setEnableLog:"+enableLog);
         flushBuffer();
-        this.enableLog = enableLog;
+        capture.setEnableLog(enableLog);
         return this;
     }
 
     public LoggingBufferedOutputStream setEnableActivityLog(boolean enableActivityLog) {
         if (enableActivityLog)
             log.debug("##### setEnableActivityLog:"+enableActivityLog);
-        this.enableActivityLog = enableActivityLog;
+        capture.enableActivityLog = enableActivityLog;
         return this;
     }
 
     public LoggingBufferedOutputStream setCharset(String charsetName) {
-        this.charset = Charset.forName(charsetName);
+        capture.setCharset(charsetName);
         return this;
     }
 
     public LoggingBufferedOutputStream setMaxLogLen(int maxLogLen) {
-        this.maxLogLen = maxLogLen;
+        capture.setMaxLogLen(maxLogLen);
+        return this;
+    }
+
+    /**
+     * Replace the transformer given to the constructor, e.g. by a ByteArrayHexTransformer of this stream.
+     * 
+     * @param transformer null for the default ByteArrayStringTransformer.
+     */
+    public LoggingBufferedOutputStream setTransformer(ByteArrayTransformer transformer) {
+        capture.setTransformer(transformer);
         return this;
     }
 
+    /**
+     * Log the written data by given background logger instead of the writing thread, or synchronously if null.
+     * The data is copied into pooled buffers. The transaction log handle and the MDC of the writing thread 
+     * are passed to the background thread, so the log records are routed as if logged by the writing thread.
+     * The transformer is only called by the background thread in async mode, so the mode must not be changed
+     * while logging is enabled.
+     */
+    public LoggingBufferedOutputStream setAsyncLogger(AsyncCaptureLogger asyncLogger) {
+        capture.setAsyncLogger(asyncLogger);
+        return this;
+    }
+
+    /**
+     * @return Number of chunks of this stream not logged because the queue of the async logger was full.
+     */
+    public long getDroppedLogChunks() {
+        return capture.getDroppedLogChunks();
+    }
+
     private void flushBuffer() throws IOException {
-        if (enableActivityLog)
+        if (capture.enableActivityLog)
             log.debug("##### flushBuffer! buffer count:"+count);
         if (count > 0) {
             out.write(buf, 0, count);
-            doLog(buf, count);
+            capture.log(buf, 0, count);
             count = 0;
         }
     }
 
     @Override
     public synchronized void write(int b) throws IOException {
-        if (enableActivityLog)
+        if (capture.enableActivityLog)
             log.debug("##### write b:"+Integer.toHexString(b));
         if (count >= buf.length) {
             flushBuffer();
@@ -131,12 +150,12 @@ public class LoggingBufferedOutputStream extends FilterOutputStream {
 
     @Override
     public synchronized void write(byte b[], int off, int len) throws IOException {
-        if (enableActivityLog)
+        if (capture.enableActivityLog)
             log.debug("##### write byte array! off:"+off+" len:"+len);
         if (len >= buf.length) {
             flushBuffer();
             out.write(b, off, len);
-            doLog(b, len);
+            capture.log(b, off, len);
             return;
         }
         if (len > buf.length - count) {
@@ -148,7 +167,7 @@ public class LoggingBufferedOutputStream extends FilterOutputStream {
 
     @Override
     public synchronized void flush() throws IOException {
-        if (enableActivityLog)
+        if (capture.enableActivityLog)
             log.debug("##### flush called");
         flushBuffer();
         out.flush();
@@ -156,67 +175,111 @@ public class LoggingBufferedOutputStream extends FilterOutputStream {
     
     @Override
     public synchronized void close() throws IOException {
-        if (enableActivityLog)
+        if (capture.enableActivityLog)
             log.debug("##### close called");
     }
 
-    
-    private void doLog(byte[] data, int len) {
-        if (enableLog && len > 0) {
-            if (maxLogLen > 0) {
-                try {
-                    if (len > maxLogLen) {
-                        transformer.log(msgHeader, data, maxLogLen, "...(truncated)");
-                    } else {
-                        transformer.log(msgHeader, data, len, null);
-                    }
-                } catch (Exception x) {
-                    log.warn("Logging failed!", x);
-                }
-                maxLogLen -= len;
-            } else if (enableActivityLog) {
-                log.debug("##### log ignored! maxLogLen reached!");
-            }
-        }
-    }
-
+    /**
+     * Logs the first len bytes of b. Implement ByteSliceTransformer (or extend AbstractByteSliceTransformer) 
+     * to log slices of an array or a ByteBuffer without copying.
+     */
     public interface ByteArrayTransformer {
         void log(String msgHeader, byte[] b, int len, String msgPostfix);
     }
-    
-    public class ByteArrayStringTransformer implements ByteArrayTransformer {
+
+    /**
+     * Offset aware transformer. The logged bytes must not be modified and must not be referenced after 
+     * the call, as the array or buffer is reused by the caller.
+     */
+    public interface ByteSliceTransformer extends ByteArrayTransformer {
+
+        /**
+         * Log len bytes of b, starting at off.
+         */
+        void log(String msgHeader, byte[] b, int off, int len, String msgPostfix);
+
+        /**
+         * Log the remaining bytes of buf. The position of buf is not changed.
+         */
+        void log(String msgHeader, ByteBuffer buf, String msgPostfix);
+    }
+
+    /**
+     * @return The given transformer if it is a ByteSliceTransformer, otherwise an adapter which copies 
+     *         slices not starting at offset 0.
+     */
+    public static ByteSliceTransformer adapt(ByteArrayTransformer transformer) {
+        return transformer instanceof ByteSliceTransformer 
+                ? (ByteSliceTransformer) transformer 
+                : new ByteArrayTransformerAdapter(transformer);
+    }
+
+    /**
+     * Base class of ByteSliceTransformers, which only have to implement the log method with offset.
+     * Buffers without accessible array (direct buffers) are copied into a reused array.
+     */
+    public static abstract class AbstractByteSliceTransformer implements ByteSliceTransformer {
+
+        private byte[] copy;
 
         @Override
         public void log(String msgHeader, byte[] b, int len, String msgPostfix) {
-            StringBuilder sb = new StringBuilder(len+100);
-            if (msgHeader != null)
-                sb.append(msgHeader);
-            sb.append(new String(b, 0, len, charset));
-            if (msgPostfix != null)
-                sb.append(msgPostfix);
-            log.info(sb.toString());
+            log(msgHeader, b, 0, len, msgPostfix);
+        }
+
+        @Override
+        public void log(String msgHeader, ByteBuffer buf, String msgPostfix) {
+            int len = buf.remaining();
+            if (buf.hasArray()) {
+                log(msgHeader, buf.array(), buf.arrayOffset() + buf.position(), len, msgPostfix);
+            } else {
+                log(msgHeader, copy(buf.duplicate(), len), 0, len, msgPostfix);
+            }
+        }
+
+        byte[] copy(ByteBuffer buf, int len) {
+            if (copy == null || copy.length < len)
+                copy = new byte[len];
+            buf.get(copy, 0, len);
+            return copy;
         }
     }
-    
-    public class ByteArrayHexTransformer implements ByteArrayTransformer {
 
-        private int blockSize = 256;
+    private static final class ByteArrayTransformerAdapter extends AbstractByteSliceTransformer {
+
+        private final ByteArrayTransformer transformer;
+
+        private ByteArrayTransformerAdapter(ByteArrayTransformer transformer) {
+            this.transformer = transformer;
+        }
 
-        private final char[] LINE_CHARS = "00000000 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00   ................".toCharArray();
-        private static final int HEX_START_POS = 9;
-        private static final int TEXT_START_POS = 59;
-        
-        private int logIdx = 0;
-        
         @Override
-        public void log(String msgHeader, byte[] b, int len, String msgPostfix) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0 ; i < len ; i++, logIdx++) {
-                if ((logIdx & 0x0f) == 0) {
-                    if (i > 0)
-                    Integer.toHexString(i).toCharArray();
-                }
-            }
+        public void log(String msgHeader, byte[] b, int off, int len, String msgPostfix) {
+            transformer.log(msgHeader, off == 0 ? b : copy(ByteBuffer.wrap(b, off, len), len), len, msgPostfix);
+        }
+    }
+    
+    /**
+     * Logs the data decoded with the charset of the stream. The decoder and the char buffer are reused. 
+     * A multi-byte character split between two chunks is decoded with the next chunk.
+     * Buffers are decoded directly, so direct buffers are not copied.
+     */
+    public class ByteArrayStringTransformer extends WriteCapture.StringTransformer {
+
+        public ByteArrayStringTransformer() {
+            capture.super();
+        }
+    }
+    
+    /**
+     * Logs the data as hex dump with 16 bytes per line: offset, hex values and printable ASCII characters.
+     * The offset continues over all logged data of the stream. Each block of blockSize bytes is logged 
+     * as one message, starting with msgHeader. The lines are built from lookup tables into a reused char buffer.
+     */
+    public class ByteArrayHexTransformer extends WriteCapture.HexTransformer {
+
+        public ByteArrayHexTransformer() {
+            capture.super();
         }
     }
 }
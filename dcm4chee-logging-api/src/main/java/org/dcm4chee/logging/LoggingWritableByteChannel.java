@@ -0,0 +1,199 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.dcm4chee.logging.LoggingBufferedOutputStream.ByteArrayTransformer;
+import org.slf4j.Logger;
+
+/**
+ * Channel counterpart of LoggingBufferedOutputStream: logs the data written to the underlying channel with
+ * the same enableLog, maxLogLen, charset, transformer and async logger semantics.
+ * 
+ * The written buffers are passed to the channel unchanged, including direct buffers and gathering writes, 
+ * and the transformer logs the written bytes directly from the buffers (see ByteSliceTransformer). 
+ * Nothing is buffered, so each write is logged as it is written. 
+ * The string and hex transformers are created by the channel, e.g.
+ * channel.setTransformer(channel.new ByteArrayHexTransformer()).
+ */
+public class LoggingWritableByteChannel implements GatheringByteChannel {
+
+    private final WritableByteChannel channel;
+    private final WriteCapture capture;
+
+    public LoggingWritableByteChannel(WritableByteChannel channel, Logger logger, String msgHeader) {
+        this(channel, logger, msgHeader, null);
+    }
+
+    public LoggingWritableByteChannel(WritableByteChannel channel, Logger logger, String msgHeader, 
+            ByteArrayTransformer transformer) {
+        this.channel = channel;
+        this.capture = new WriteCapture(logger, msgHeader, transformer, 8192);
+    }
+
+    public LoggingWritableByteChannel setEnableLog(boolean enableLog) {
+        if (capture.enableActivityLog)
+            capture.log.debug("##### setEnableLog:"+enableLog);
+        capture.setEnableLog(enableLog);
+        return this;
+    }
+
+    public LoggingWritableByteChannel setEnableActivityLog(boolean enableActivityLog) {
+        if (enableActivityLog)
+            capture.log.debug("##### setEnableActivityLog:"+enableActivityLog);
+        capture.enableActivityLog = enableActivityLog;
+        return this;
+    }
+
+    public LoggingWritableByteChannel setCharset(String charsetName) {
+        capture.setCharset(charsetName);
+        return this;
+    }
+
+    public LoggingWritableByteChannel setMaxLogLen(int maxLogLen) {
+        capture.setMaxLogLen(maxLogLen);
+        return this;
+    }
+
+    /**
+     * @param transformer null for the default ByteArrayStringTransformer.
+     */
+    public LoggingWritableByteChannel setTransformer(ByteArrayTransformer transformer) {
+        capture.setTransformer(transformer);
+        return this;
+    }
+
+    public LoggingWritableByteChannel setAsyncLogger(AsyncCaptureLogger asyncLogger) {
+        capture.setAsyncLogger(asyncLogger);
+        return this;
+    }
+
+    public long getDroppedLogChunks() {
+        return capture.getDroppedLogChunks();
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        int pos = src.position();
+        int n = channel.write(src);
+        if (n > 0 && capture.isLogging())
+            capture.log(written(src, pos));
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Pass the gathering write to the channel (if it is a GatheringByteChannel, otherwise the buffers are written 
+     * one by one until one is not written completely) and log the written part of each buffer.
+     */
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!capture.isLogging())
+            return gather(srcs, offset, length);
+        int[] pos = new int[length];
+        for (int i = 0; i < length; i++)
+            pos[i] = srcs[offset + i].position();
+        long n = gather(srcs, offset, length);
+        for (int i = 0; i < length; i++) {
+            ByteBuffer src = srcs[offset + i];
+            if (src.position() > pos[i])
+                capture.log(written(src, pos[i]));
+        }
+        return n;
+    }
+
+    private long gather(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (channel instanceof GatheringByteChannel)
+            return ((GatheringByteChannel) channel).write(srcs, offset, length);
+        long n = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            n += channel.write(srcs[i]);
+            if (srcs[i].hasRemaining())
+                break;
+        }
+        return n;
+    }
+
+    /**
+     * @return View of the bytes of src written since pos.
+     */
+    private static ByteBuffer written(ByteBuffer src, int pos) {
+        ByteBuffer written = src.duplicate();
+        written.limit(src.position());
+        written.position(pos);
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Logs the data decoded with the charset of the channel, see LoggingBufferedOutputStream.ByteArrayStringTransformer.
+     */
+    public class ByteArrayStringTransformer extends WriteCapture.StringTransformer {
+
+        public ByteArrayStringTransformer() {
+            capture.super();
+        }
+    }
+
+    /**
+     * Logs the data as hex dump, see LoggingBufferedOutputStream.ByteArrayHexTransformer.
+     */
+    public class ByteArrayHexTransformer extends WriteCapture.HexTransformer {
+
+        public ByteArrayHexTransformer() {
+            capture.super();
+        }
+    }
+}
@@ -38,20 +38,54 @@
 package org.dcm4chee.logging;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.ErrorManager;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.slf4j.MDC;
 
 /**
  * Logging handler to split log messages to thread/transaction relevant pieces.
- * Therefore org.slf4j.MDC properties are used to build the log filename:
+ * Therefore org.slf4j.MDC properties are used to build the log filename.
+ * The MDC values are taken from the log record if it carries its own MDC copy (JBoss LogManager ExtLogRecord), 
+ * otherwise from the MDC of the current thread. So this handler can also be wrapped in an async-handler.
  * mdcPropertyLogDir:       Property name which contains the logging directory 
  *                          (default: jboss.server.log.dir)
  * mdcPropertyLogFilename:  Name of MDC property which holds the log filename. 
@@ -61,9 +95,102 @@ import org.slf4j.MDC;
  *                          If this property is not used, each OutputStream will be open until the server is stopped!
  *                          Note: the level of root logger must be INFO (or lower) to ensure that the last info log message
  *                                will trigger the close.
+ * maxOpenFiles:            Maximum number of open log files. If exceeded, the least recently used file is closed
+ *                          and reopened (append mode) with the next record of this transaction (default: 1000).
+ * idleTimeout:             Time in ms after which the log file of an idle transaction is closed (default: 300000).
+ *                          Transactions without records for twice this time are forgotten. 0 disables the check.
+ * flushPolicy:             When buffered records are written to the log file (default: RECORD):
+ *                          RECORD:   after each record.
+ *                          BUFFER:   when the write buffer is full or the transaction log is closed.
+ *                          INTERVAL: every flushInterval ms and when the write buffer is full or the log is closed.
+ * flushInterval:           Flush interval in ms for flushPolicy INTERVAL (default: 1000).
+ * flushLevel:              Records of this level or higher are always flushed immediately (default: WARN).
+ * bufferSize:              Size of the write buffer of each log file (default: 8192).
+ * triggerLevel:            If set, the records of a transaction are kept in memory and the log file is only written
+ *                          when a record of this level or higher occurs. Logs of transactions which are closed 
+ *                          without such a record are discarded. Use level DEBUG for this handler to get
+ *                          full detail of the failed transactions (default: not set).
+ * maxRetainedChars:        Maximum size (in chars) of the records of one transaction kept in memory while waiting 
+ *                          for a triggerLevel or samplingKeepLevel record. If exceeded, the oldest records are 
+ *                          discarded (default: 1048576).
+ * samplingPercentage:      Percentage of transactions which are logged (default: 100). The decision is made once per
+ *                          transaction by a hash of the log filename, so it is stable for all records of a transaction.
+ * samplingKeepLevel:       A record of this level or higher is logged even if the transaction was not selected by 
+ *                          sampling. The records of a transaction which is not selected are kept in memory, as for
+ *                          triggerLevel, and written before such a record, so the log file contains the records 
+ *                          which led to it. They are discarded if the transaction is closed without such a record 
+ *                          (default: SEVERE).
+ * fileLayout:              Directory layout of the log files below the log directory (default: FLAT):
+ *                          FLAT:      all log files in the log directory.
+ *                          HASH:      two levels of hash shards of the log filename, e.g. 3f/a0/[filename].log
+ *                          TIME:      hourly directories of the time the log file is created, e.g. 2013/04/30/09/[filename].log
+ *                          TIME_HASH: hash shards in hourly directories, e.g. 2013/04/30/09/3f/a0/[filename].log
+ * storage:                 FILE: one log file per transaction (default).
+ *                          SEGMENT: the records of all transactions are appended to shared segment files 
+ *                          (mdc-[segment number].seg) in the log directory, with an index of the transactions 
+ *                          per segment. fileLayout is not used. The log of a single transaction is reconstructed 
+ *                          by SegmentLogExtractor.
+ * segmentSize:             Size in bytes after which a new segment file is started (default: 67108864).
+ * compression:             NONE: log files are not compressed (default).
+ *                          ON_CLOSE: the log file of a closed transaction is compressed in the background 
+ *                          to [filename].log.gz, the uncompressed file is deleted afterwards.
+ *                          STREAMING: records are compressed while written to [filename].log.gz. Each flush 
+ *                          (see flushPolicy) ends a deflate block (sync flush), so the file is readable up to the last
+ *                          flush even after a crash. A reopened file is continued with a new gzip member.
+ *                          Use flushPolicy BUFFER or INTERVAL, flushing each record reduces the compression ratio.
+ *                          Requires Java 7 or later.
+ *                          Compression is not used with storage SEGMENT.
+ * maxLogAge:               Log files older than this time in ms are deleted (default: 0 = no limit).
+ * maxLogBytes:             If the total size of the log files exceeds this number of bytes, the oldest files are 
+ *                          deleted (default: 0 = no limit).
+ * janitorInterval:         Interval in ms in which maxLogAge and maxLogBytes are checked (default: 60000).
+ * janitorFilesPerTick:     Maximum number of files visited or deleted per check, so a walk over a large log directory
+ *                          is spread over several checks (default: 1000).
+ * janitorExclude:          Regular expression of filenames which are never deleted (default: (server|boot)\.log).
+ *                          Only files written by this handler in the log directories used since server start are 
+ *                          checked: *.log and *.log.gz in the subdirectories of the fileLayout, segment files with
+ *                          storage SEGMENT. Only empty subdirectories of the fileLayout are removed. 
+ *                          Files of open transactions are never deleted.
+ * dedicatedLogDir:         true if the log directories only contain log files of this handler (default: false).
+ *                          Required for maxLogAge and maxLogBytes with fileLayout FLAT, as the log files are not
+ *                          distinguishable from other log files (e.g. in jboss.server.log.dir) otherwise.
+ * compressionLevel:        Deflater level 1 (fastest) to 9 (best compression) (default: 6).
+ * compressionThreads:      Number of background compression threads (default: 1).
+ * 
+ * The character encoding of the log files is set by the encoding of the handler (default: platform encoding).
+ * Formatted records are encoded into pooled direct buffers which are written to the log file channels.
+ * async:                   If true, records are formatted by the calling thread and written to the log files
+ *                          by background writer threads (default: false).
+ * queueSize:               Maximum number of records waiting for the writer threads in async mode (default: 1024).
+ *                          The queue size is divided among the writer threads.
+ * writerThreads:           Number of background writer threads in async mode (default: 1).
+ *                          Each writer thread has its own queue. The transactions are partitioned among the writer 
+ *                          threads by a hash of the log filename, so all records of a transaction are written 
+ *                          by the same thread in the order they were logged.
+ * overflowAction:          BLOCK: calling thread waits if the queue is full, DISCARD: record is dropped (default: BLOCK).
+ * 
+ * jmxName:                 Name of the MBean of this handler (org.dcm4chee.logging:type=MdcSplittingAppender,name=[jmxName])
+ *                          with counters, latencies and management operations, see MdcSplittingAppenderMBean 
+ *                          (default: MdcSplittingAppender-[identity hash code of the handler]).
+ *                          The MBean is registered with the first record published to the handler. 
+ *                          A name already registered by another handler is reported as error and not taken over.
  * 
  * MDC splitting must be enabled by logging "START_MDC_SPLITTING" (necessary because of (module) classloading issue with JAVA 7 during JBoss startup!)
  * 
+ * Records of different transactions are written concurrently. Only records of the same transaction 
+ * (same value of mdcPropertyLogFilename) are serialized.
+ * 
+ * Instead of the MDC properties, the application can open a transaction log handle, which routes the records
+ * of the calling thread until it is closed (see TransactionLogs). This does not need "START_MDC_SPLITTING" and
+ * the close does not depend on the level of the root logger. setActive(false) (JMX) stops these records too:
+ * ...
+ * TransactionLog txLog = TransactionLogs.open("/var/log/mywebservice", transactionID);
+ * try {
+ *     [process webservice request with some logging] 
+ * } finally {
+ *     txLog.close();
+ * }
+ * 
  * e.g.: Log each webservice request in its own log file:
  * ...
  * log.info("START_MDC_SPLITTING);
@@ -114,14 +241,96 @@ import org.slf4j.MDC;
  * @author franz.willer@gmail.com
  *
  */
-public class MdcSplittingAppender extends Handler {
+public class MdcSplittingAppender extends Handler implements MdcSplittingAppenderMBean {
 
-	private static boolean isActive;
+	private static volatile boolean isActive;
+    /** Stopped by setActive(false), which also stops the records of transaction log handles. */
+    private static volatile boolean deactivated;
+    private static final boolean SYNC_FLUSH_SUPPORTED = isSyncFlushSupported();
     private String mdcPropertyLogDir;
     private String mdcPropertyLogFilename;
     private String mdcPropertyCloseLogFile;
+
+    private boolean async;
+    private int queueSize = 1024;
+    private int writerThreads = 1;
+    private OverflowAction overflowAction = OverflowAction.BLOCK;
+    private int maxOpenFiles = 1000;
+    private long idleTimeout = 300000;
+    private FlushPolicy flushPolicy = FlushPolicy.RECORD;
+    private long flushInterval = 1000;
+    private Level flushLevel = Level.WARNING;
+    private int bufferSize = 8192;
+    private Level triggerLevel;
+    private int maxRetainedChars = 1048576;
+    private double samplingPercentage = 100;
+    private FileLayout fileLayout = FileLayout.FLAT;
+    private Storage storage = Storage.FILE;
+    private long segmentSize = 64 * 1024 * 1024;
+    private Compression compression = Compression.NONE;
+    private int compressionLevel = 6;
+    private int compressionThreads = 1;
+    private long maxLogAge;
+    private long maxLogBytes;
+    private long janitorInterval = 60000;
+    private int janitorFilesPerTick = 1000;
+    private String janitorExclude = "(server|boot)\\.log";
+    private boolean dedicatedLogDir;
+    private Level samplingKeepLevel = Level.SEVERE;
+    private volatile Charset charset = Charset.defaultCharset();
     
-    private HashMap<String, OutputStream> mapLogStreams = new HashMap<String, OutputStream>();
+    private final ConcurrentHashMap<String, LogStream> mapLogStreams = new ConcurrentHashMap<String, LogStream>();
+    private final AtomicInteger openFiles = new AtomicInteger();
+    private final LogStream openStreams = LogStream.newListHead();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong evictedFiles = new AtomicLong();
+    private final AtomicLong reopenedFiles = new AtomicLong();
+    private final ConcurrentHashMap<File, SegmentLogStore> segmentStores = new ConcurrentHashMap<File, SegmentLogStore>();
+    private final ConcurrentHashMap<File, Boolean> createdDirs = new ConcurrentHashMap<File, Boolean>();
+    private final ConcurrentLinkedQueue<WriteBuffer> writeBufferPool = new ConcurrentLinkedQueue<WriteBuffer>();
+    private volatile ScheduledExecutorService scheduler;
+    private ExecutorService compressor;
+    private volatile LogJanitor janitor;
+
+    private volatile ThreadLocal<Routing> lastRouting = new ThreadLocal<Routing>();
+    private volatile BlockingQueue<PendingRecord>[] queues;
+    private Thread[] writers;
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    private String jmxName;
+    private ObjectName objectName;
+    private volatile boolean jmxRegistration;
+    private final AtomicLong openedFiles = new AtomicLong();
+    private final AtomicLong closedFiles = new AtomicLong();
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong ioErrors = new AtomicLong();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    public MdcSplittingAppender() {
+        jmxName = "MdcSplittingAppender-" + Integer.toHexString(System.identityHashCode(this));
+    }
+
+    public enum OverflowAction {
+        BLOCK, DISCARD
+    }
+
+    public enum FlushPolicy {
+        RECORD, BUFFER, INTERVAL
+    }
+
+    public enum FileLayout {
+        FLAT, HASH, TIME, TIME_HASH
+    }
+
+    public enum Storage {
+        FILE, SEGMENT
+    }
+
+    public enum Compression {
+        NONE, ON_CLOSE, STREAMING
+    }
     
     public String getMdcPropertyLogDir() {
         return mdcPropertyLogDir;
@@ -129,6 +338,7 @@ public class MdcSplittingAppender extends Handler {
 
     public void setMdcPropertyLogDir(String mdcPropertyLogDir) {
         this.mdcPropertyLogDir = mdcPropertyLogDir;
+        TransactionLogs.addRoutingKey(mdcPropertyLogDir);
     }
 
     public String getMdcPropertyLogFilename() {
@@ -137,6 +347,7 @@ public class MdcSplittingAppender extends Handler {
 
     public void setMdcPropertyLogFilename(String mdcPropertyLogFilename) {
         this.mdcPropertyLogFilename = mdcPropertyLogFilename;
+        TransactionLogs.addRoutingKey(mdcPropertyLogFilename);
     }
 
     public String getMdcPropertyCloseLogFile() {
@@ -147,92 +358,1460 @@ public class MdcSplittingAppender extends Handler {
         this.mdcPropertyCloseLogFile = mdcPropertyCloseLogFile;
     }
 
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        if (queueSize <= 0)
+            throw new IllegalArgumentException("queueSize <= 0");
+        this.queueSize = queueSize;
+    }
+
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+
+    public void setWriterThreads(int writerThreads) {
+        if (writerThreads <= 0)
+            throw new IllegalArgumentException("writerThreads <= 0");
+        this.writerThreads = writerThreads;
+    }
+
+    public String getOverflowAction() {
+        return overflowAction.name();
+    }
+
+    public void setOverflowAction(String overflowAction) {
+        this.overflowAction = OverflowAction.valueOf(overflowAction.toUpperCase());
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        if (maxOpenFiles <= 0)
+            throw new IllegalArgumentException("maxOpenFiles <= 0");
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0)
+            throw new IllegalArgumentException("idleTimeout < 0");
+        this.idleTimeout = idleTimeout;
+    }
+
+    public String getFlushPolicy() {
+        return flushPolicy.name();
+    }
+
+    public void setFlushPolicy(String flushPolicy) {
+        this.flushPolicy = FlushPolicy.valueOf(flushPolicy.toUpperCase());
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        if (flushInterval <= 0)
+            throw new IllegalArgumentException("flushInterval <= 0");
+        this.flushInterval = flushInterval;
+    }
+
+    public String getFlushLevel() {
+        return flushLevel.getName();
+    }
+
+    public void setFlushLevel(String flushLevel) {
+        this.flushLevel = Level.parse(flushLevel.toUpperCase());
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize <= 0");
+        this.bufferSize = bufferSize;
+    }
+
+    public String getTriggerLevel() {
+        return triggerLevel == null ? null : triggerLevel.getName();
+    }
+
+    public void setTriggerLevel(String triggerLevel) {
+        this.triggerLevel = triggerLevel == null || triggerLevel.length() == 0 ? null : Level.parse(triggerLevel.toUpperCase());
+    }
+
+    public int getMaxRetainedChars() {
+        return maxRetainedChars;
+    }
+
+    public void setMaxRetainedChars(int maxRetainedChars) {
+        if (maxRetainedChars <= 0)
+            throw new IllegalArgumentException("maxRetainedChars <= 0");
+        this.maxRetainedChars = maxRetainedChars;
+    }
+
+    public double getSamplingPercentage() {
+        return samplingPercentage;
+    }
+
+    public void setSamplingPercentage(double samplingPercentage) {
+        if (samplingPercentage < 0 || samplingPercentage > 100)
+            throw new IllegalArgumentException("samplingPercentage not in [0,100]");
+        this.samplingPercentage = samplingPercentage;
+    }
+
+    public String getSamplingKeepLevel() {
+        return samplingKeepLevel.getName();
+    }
+
+    public void setSamplingKeepLevel(String samplingKeepLevel) {
+        this.samplingKeepLevel = Level.parse(samplingKeepLevel.toUpperCase());
+    }
+
+    public String getFileLayout() {
+        return fileLayout.name();
+    }
+
+    public void setFileLayout(String fileLayout) {
+        this.fileLayout = FileLayout.valueOf(fileLayout.toUpperCase());
+    }
+
+    public String getStorage() {
+        return storage.name();
+    }
+
+    public void setStorage(String storage) {
+        this.storage = Storage.valueOf(storage.toUpperCase());
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("segmentSize <= 0");
+        this.segmentSize = segmentSize;
+    }
+
+    public String getCompression() {
+        return compression.name();
+    }
+
+    public void setCompression(String compression) {
+        Compression value = Compression.valueOf(compression.toUpperCase());
+        if (value == Compression.STREAMING && !SYNC_FLUSH_SUPPORTED)
+            throw new IllegalArgumentException("compression STREAMING requires Java 7 or later");
+        this.compression = value;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 1 || compressionLevel > 9)
+            throw new IllegalArgumentException("compressionLevel not in [1,9]");
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    public void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads <= 0)
+            throw new IllegalArgumentException("compressionThreads <= 0");
+        this.compressionThreads = compressionThreads;
+    }
+
+    public long getMaxLogAge() {
+        return maxLogAge;
+    }
+
+    public void setMaxLogAge(long maxLogAge) {
+        if (maxLogAge < 0)
+            throw new IllegalArgumentException("maxLogAge < 0");
+        this.maxLogAge = maxLogAge;
+    }
+
+    public long getMaxLogBytes() {
+        return maxLogBytes;
+    }
+
+    public void setMaxLogBytes(long maxLogBytes) {
+        if (maxLogBytes < 0)
+            throw new IllegalArgumentException("maxLogBytes < 0");
+        this.maxLogBytes = maxLogBytes;
+    }
+
+    public long getJanitorInterval() {
+        return janitorInterval;
+    }
+
+    public void setJanitorInterval(long janitorInterval) {
+        if (janitorInterval <= 0)
+            throw new IllegalArgumentException("janitorInterval <= 0");
+        this.janitorInterval = janitorInterval;
+    }
+
+    public int getJanitorFilesPerTick() {
+        return janitorFilesPerTick;
+    }
+
+    public void setJanitorFilesPerTick(int janitorFilesPerTick) {
+        if (janitorFilesPerTick <= 0)
+            throw new IllegalArgumentException("janitorFilesPerTick <= 0");
+        this.janitorFilesPerTick = janitorFilesPerTick;
+    }
+
+    public String getJanitorExclude() {
+        return janitorExclude;
+    }
+
+    public void setJanitorExclude(String janitorExclude) {
+        this.janitorExclude = janitorExclude;
+    }
+
+    public boolean isDedicatedLogDir() {
+        return dedicatedLogDir;
+    }
+
+    public void setDedicatedLogDir(boolean dedicatedLogDir) {
+        this.dedicatedLogDir = dedicatedLogDir;
+    }
+
+    /**
+     * @return Number of log files deleted because of maxLogAge or maxLogBytes.
+     */
+    public long getDeletedFiles() {
+        LogJanitor j = janitor;
+        return j == null ? 0 : j.getDeletedFiles();
+    }
+
+    @Override
+    public synchronized void setEncoding(String encoding) throws SecurityException, UnsupportedEncodingException {
+        super.setEncoding(encoding);
+        charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+    }
+
+    /**
+     * @return Number of currently open log files.
+     */
+    public int getOpenFiles() {
+        return openFiles.get();
+    }
+
+    /**
+     * @return Number of log files closed because maxOpenFiles was exceeded or the transaction was idle.
+     */
+    public long getEvictedFiles() {
+        return evictedFiles.get();
+    }
+
+    /**
+     * @return Number of evicted log files which were reopened by a later record of the transaction.
+     */
+    public long getReopenedFiles() {
+        return reopenedFiles.get();
+    }
+
+    /**
+     * @return Number of records discarded in async mode because the queue was full.
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    public String getJmxName() {
+        return jmxName;
+    }
+
+    /**
+     * Set the name of the MBean of this handler. If already registered, the MBean is registered again with given name.
+     */
+    public synchronized void setJmxName(String jmxName) {
+        unregisterMBean();
+        this.jmxName = jmxName;
+        if (jmxRegistration)
+            register();
+    }
+
+    /**
+     * Register the MBean of this handler on its first use, so handlers which are configured but never used 
+     * are not registered.
+     */
+    private synchronized void registerMBean() {
+        if (!jmxRegistration) {
+            jmxRegistration = true;
+            register();
+        }
+    }
+
+    private void register() {
+        try {
+            ObjectName name = new ObjectName("org.dcm4chee.logging:type=MdcSplittingAppender,name=" 
+                    + ObjectName.quote(jmxName));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                reportError("MBean name " + name + " is already in use, configure a unique jmxName", null, 
+                        ErrorManager.GENERIC_FAILURE);
+                return;
+            }
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (Exception e) {
+            reportError("Failed to register MBean " + jmxName, e, ErrorManager.GENERIC_FAILURE);
+        }
+    }
+
+    private synchronized void unregisterMBean() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                reportError("Failed to unregister MBean " + jmxName, e, ErrorManager.GENERIC_FAILURE);
+            }
+            objectName = null;
+        }
+    }
+
+    public boolean isActive() {
+        return isActive;
+    }
+
+    public void setActive(boolean active) {
+        isActive = active;
+        deactivated = !active;
+    }
+
+    public int getKnownTransactions() {
+        return mapLogStreams.size();
+    }
+
+    public long getOpenedFiles() {
+        return openedFiles.get();
+    }
+
+    public long getClosedFiles() {
+        return closedFiles.get();
+    }
+
+    public long getRecordsWritten() {
+        return recordsWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getIoErrors() {
+        return ioErrors.get();
+    }
+
+    public int getQueueDepth() {
+        BlockingQueue<PendingRecord>[] qs = queues;
+        int depth = 0;
+        if (qs != null)
+            for (BlockingQueue<PendingRecord> q : qs)
+                depth += q.size();
+        return depth;
+    }
+
+    public long getWriteLatency50() {
+        return writeLatency.percentileMicros(50);
+    }
+
+    public long getWriteLatency99() {
+        return writeLatency.percentileMicros(99);
+    }
+
+    public long getWriteLatency999() {
+        return writeLatency.percentileMicros(99.9);
+    }
+
+    public long getFlushLatency50() {
+        return flushLatency.percentileMicros(50);
+    }
+
+    public long getFlushLatency99() {
+        return flushLatency.percentileMicros(99);
+    }
+
+    public long getFlushLatency999() {
+        return flushLatency.percentileMicros(99.9);
+    }
+
+    public void resetLatencies() {
+        writeLatency.reset();
+        flushLatency.reset();
+    }
+
+    public String[] listOpenTransactions() {
+        List<String> ids = new ArrayList<String>();
+        for (LogStream stream : mapLogStreams.values())
+            if (stream.buffer != null)
+                ids.add(stream.filename);
+        return ids.toArray(new String[ids.size()]);
+    }
+
+    public boolean forceClose(String transactionID) {
+        if (getLogStream(transactionID) == null)
+            return false;
+        close(new Routing(transactionID, null, Boolean.TRUE.toString()));
+        return true;
+    }
+
+    @Override
+    protected void reportError(String msg, Exception ex, int code) {
+        if (code != ErrorManager.GENERIC_FAILURE)
+            ioErrors.incrementAndGet();
+        super.reportError(msg, ex, code);
+    }
+
     @Override
     public void publish(LogRecord record) {
-        synchronized (mapLogStreams) {
-            if (isLoggable(record)) {
-                OutputStream out = getOrCreateLogStream();
-                if (out != null) {
-                    try {
-                        out.write(getFormatter().format(record).getBytes());
-                        out.flush();
-                    } catch (IOException e) {
-                        reportError(e.getMessage(), e, ErrorManager.WRITE_FAILURE);
-                    }
-                    if (mdcPropertyCloseLogFile != null && Boolean.valueOf(MDC.get(mdcPropertyCloseLogFile))) {
-                        close();
-                    }
-                }
+        if (!jmxRegistration)
+            registerMBean();
+        Routing routing = route(record);
+        if (isLoggable(record, routing)) {
+            int level = record.getLevel().intValue();
+            String text = getFormatter().format(record);
+            if (async) {
+                enqueue(new PendingRecord(routing, text, level));
+            } else {
+                write(routing, text, level);
             }
         }
     }
 
     @Override
     public void flush() {
-        try {
-            OutputStream out = getOrCreateLogStream();
-            if (out != null) {
-                out.flush();
+        LogStream stream = mdcPropertyLogFilename == null ? null : getLogStream(MDC.get(mdcPropertyLogFilename));
+        if (stream != null) {
+            synchronized (stream) {
+                try {
+                    if (stream.buffer != null) {
+                        flushLogStream(stream);
+                    }
+                } catch (IOException e) {
+                    reportError(e.getMessage(), e, ErrorManager.FLUSH_FAILURE);
+                }
             }
-        } catch (IOException e) {
-            reportError(e.getMessage(), e, ErrorManager.FLUSH_FAILURE);
         }
     }
 
+    /**
+     * Close the log stream of the current transaction.
+     * If no transaction is associated with the calling thread (e.g. the handler is closed by the 
+     * logging subsystem) all pending records are written and all log streams are closed.
+     */
     @Override
     public void close() throws SecurityException {
         String filename = mdcPropertyLogFilename == null ? null : MDC.get(mdcPropertyLogFilename);
-        if (filename != null) {
-            try {
-                OutputStream out = mapLogStreams.get(filename);
-                if (out != null) {
-                    out.close();
-                    mapLogStreams.remove(filename);
+        if (filename == null) {
+            shutdown();
+        } else {
+            close(new Routing(filename, null, Boolean.TRUE.toString()));
+        }
+    }
+
+    private void close(Routing routing) {
+        if (queues != null) {
+            enqueue(new PendingRecord(routing, null, Level.OFF.intValue()));
+        } else {
+            LogStream stream = getLogStream(routing);
+            if (stream != null) {
+                synchronized (stream) {
+                    finishLogStream(stream);
                 }
-            } catch (IOException e) {
-                reportError(e.getMessage(), e, ErrorManager.CLOSE_FAILURE);
             }
         }
     }
+
+    /**
+     * Check the sampling decision of the transaction, which is cached in its stream. 
+     * A not sampled transaction becomes sampled by a record of samplingKeepLevel or higher.
+     * Must be called with the lock of the stream held.
+     */
+    private boolean isSampled(LogStream stream, int level) {
+        if (!stream.sampled) {
+            if (level < samplingKeepLevel.intValue())
+                return false;
+            stream.sampled = true;
+        }
+        return true;
+    }
     
     @Override
     public boolean isLoggable(LogRecord record) {
+        return isLoggable(record, route(record));
+    }
+
+    /**
+     * @return Routing of the transaction log handle bound to the calling thread (see TransactionLogs), 
+     *         otherwise of the MDC values of the record if MDC splitting is active. 
+     *         Handles are ignored after setActive(false) until MDC splitting is started again.
+     */
+    private Routing route(LogRecord record) {
+        TransactionLog log = TransactionLogs.current();
+        if (log != null && !log.isFinished() && !deactivated)
+            return routing(log);
+        return isActive(record) ? routing(record) : null;
+    }
+
+    /**
+     * The routing of a transaction log handle is created once per handler and kept in the handle.
+     */
+    private Routing routing(TransactionLog log) {
+        for (TransactionLog.Binding binding : log.bindings)
+            if (binding.handler == this)
+                return binding.routing;
+        Routing routing = new Routing(log.getId(), log.getDir(), null);
+        log.bindings.add(new TransactionLog.Binding(this, routing));
+        return routing;
+    }
+
+    /**
+     * Close the log stream of given routing of a transaction log handle, as a close record would do.
+     */
+    void finish(Routing routing) {
+        Routing closing = new Routing(routing.filename, routing.dir, Boolean.TRUE.toString());
+        closing.stream = routing.stream;
+        close(closing);
+    }
+
+    private boolean isActive(LogRecord record) {
     	if (!isActive) {
     		if ("START_MDC_SPLITTING".equals(record.getMessage())) {
     			isActive = true;
+    			deactivated = false;
     		} else {
     			return false;
     		}
     	}
-        if (mdcPropertyLogFilename == null || MDC.get(mdcPropertyLogFilename) == null) {
+        return true;
+    }
+
+    private boolean isLoggable(LogRecord record, Routing routing) {
+        if (routing == null) {
             return false;
-        } else if (mdcPropertyCloseLogFile != null && Boolean.valueOf(MDC.get(mdcPropertyCloseLogFile))) {
+        } else if (routing.closeLog) {
             return true;
         } else {
             return super.isLoggable(record);
         }
     }
-   
-    private OutputStream getOrCreateLogStream() {
-        OutputStream out = null;
-        String filename = MDC.get(mdcPropertyLogFilename);
+
+    /**
+     * Resolve the routing MDC values of the record. The last routing of the calling thread is reused 
+     * (with its cached log stream) as long as the MDC values are the same.
+     * 
+     * @return null if the record has no log filename in its MDC.
+     */
+    private Routing routing(LogRecord record) {
+        String filename = RecordMdc.get(record, mdcPropertyLogFilename);
+        if (filename == null)
+            return null;
+        String dir = RecordMdc.get(record, mdcPropertyLogDir);
+        String close = RecordMdc.get(record, mdcPropertyCloseLogFile);
+        Routing routing = lastRouting.get();
+        if (routing == null || !routing.matches(filename, dir, close)) {
+            routing = new Routing(filename, dir, close);
+            lastRouting.set(routing);
+        }
+        return routing;
+    }
+
+    private void write(Routing routing, String text, int level) {
+        long start = System.nanoTime();
+        for (;;) {
+            LogStream stream = text == null ? getLogStream(routing) : getOrCreateLogStream(routing);
+            if (stream == null)
+                return;
+            synchronized (stream) {
+                if (stream.closed)
+                    continue;//closed by a concurrent close of the same transaction
+                if (text != null) {
+                    stream.lastAccess = System.currentTimeMillis();
+                    stream.referenced = true;
+                    Level trigger = triggerLevel;
+                    boolean sampled = isSampled(stream, level);
+                    if (!sampled || trigger != null && !stream.opened && level < trigger.intValue()) {
+                        stream.retain(text, maxRetainedChars);
+                    } else {
+                        if (stream.buffer == null && !openLogStream(stream, routing.dir)) 
+                            return;
+                        try {
+                            if (stream.retained != null)
+                                writeRetained(stream);
+                            encode(stream, text);
+                            recordsWritten.incrementAndGet();
+                            if (flushPolicy == FlushPolicy.RECORD || level >= flushLevel.intValue())
+                                flushLogStream(stream);
+                            stream.dirty = stream.buffer.bytes.position() > 0;
+                        } catch (IOException e) {
+                            reportError(e.getMessage(), e, ErrorManager.WRITE_FAILURE);
+                        }
+                    }
+                }
+                if (routing.closeLog) {
+                    finishLogStream(stream);
+                }
+            }
+            if (openFiles.get() > maxOpenFiles)
+                evictLeastRecentlyUsed();
+            if (text != null)
+                writeLatency.record(System.nanoTime() - start);
+            return;
+        }
+    }
+
+    /**
+     * Write the records kept in memory (triggerLevel, samplingKeepLevel) to the log file. 
+     * Must be called with the lock of the stream held.
+     */
+    private void writeRetained(LogStream stream) throws IOException {
+        if (stream.discardedRecords > 0)
+            encode(stream, "... " + stream.discardedRecords + " earlier records discarded" 
+                    + System.getProperty("line.separator"));
+        for (String text : stream.retained)
+            encode(stream, text);
+        recordsWritten.addAndGet(stream.retained.size());
+        stream.clearRetained();
+    }
+
+    /**
+     * Encode text into the write buffer of given stream. The buffer is written to the log file whenever it is full.
+     * Must be called with the lock of the stream held.
+     */
+    private void encode(LogStream stream, String text) throws IOException {
+        WriteBuffer buffer = stream.buffer;
+        CharsetEncoder encoder = buffer.encoder;
+        CharBuffer chars = buffer.chars;
+        ByteBuffer bytes = buffer.bytes;
+        int len = text.length();
+        int pos = 0;
+        encoder.reset();
+        do {
+            int n = Math.min(chars.remaining(), len - pos);
+            text.getChars(pos, pos + n, chars.array(), chars.position());
+            chars.position(chars.position() + n);
+            pos += n;
+            chars.flip();
+            while (encoder.encode(chars, bytes, pos == len).isOverflow())
+                drain(stream);
+            chars.compact();
+        } while (pos < len);
+        while (encoder.flush(bytes).isOverflow())
+            drain(stream);
+        chars.clear();
+    }
+
+    /**
+     * Write the content of the write buffer of given stream to the log file and flush the compressor (STREAMING).
+     * Must be called with the lock of the stream held.
+     */
+    private void flushLogStream(LogStream stream) throws IOException {
+        long start = System.nanoTime();
+        drain(stream);
+        if (stream.gzip != null)
+            stream.gzip.flush();
+        flushLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Write the content of the write buffer of given stream to the log file, compressor or segment store. 
+     * Must be called with the lock of the stream held.
+     * 
+     * A FileChannel is closed if the writing thread is interrupted. Therefore the interrupt status is cleared
+     * during the write and the log file is reopened if the channel was closed by an interrupt anyway.
+     */
+    private void drain(LogStream stream) throws IOException {
+        ByteBuffer bytes = stream.buffer.bytes;
+        if (bytes.position() == 0)
+            return;
+        bytes.flip();
+        bytesWritten.addAndGet(bytes.limit());
+        if (stream.store != null || stream.gzip != null) {
+            try {
+                if (stream.store != null)
+                    stream.store.append(stream.filename, stream.idBytes, bytes);
+                else
+                    stream.gzip.write(bytes.array(), bytes.arrayOffset(), bytes.limit());
+            } finally {
+                bytes.clear();
+            }
+            return;
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+            try {
+                while (bytes.hasRemaining())
+                    stream.channel.write(bytes);
+            } catch (ClosedByInterruptException e) {
+                interrupted |= Thread.interrupted();
+                stream.channel = new FileOutputStream(stream.file, true).getChannel();
+                while (bytes.hasRemaining())
+                    stream.channel.write(bytes);
+            }
+        } finally {
+            bytes.clear();
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private WriteBuffer takeWriteBuffer(boolean direct) {
+        Charset cs = charset;
+        WriteBuffer buffer;
+        while ((buffer = writeBufferPool.poll()) != null) {
+            if (buffer.bytes.capacity() == bufferSize && buffer.bytes.isDirect() == direct 
+                    && buffer.encoder.charset().equals(cs))
+                return buffer;
+        }
+        return new WriteBuffer(cs, bufferSize, direct);
+    }
+
+    /**
+     * Close least recently used log files until maxOpenFiles is no longer exceeded. 
+     * Only one thread evicts, other threads return immediately.
+     * Called without holding the lock of any stream.
+     */
+    private void evictLeastRecentlyUsed() {
+        if (!evicting.compareAndSet(false, true))
+            return;
+        try {
+            while (openFiles.get() > maxOpenFiles) {
+                LogStream lru = leastRecentlyUsed();
+                if (lru == null)
+                    return;
+                synchronized (lru) {
+                    if (lru.buffer != null) {
+                        closeFile(lru);
+                        evictedFiles.incrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Select the least recently used open stream by the second chance (clock) algorithm: a stream which was 
+     * written since it was passed last is moved to the end of the list of open streams instead. 
+     * So writing a record needs no lock on the list.
+     */
+    private LogStream leastRecentlyUsed() {
+        synchronized (openStreams) {
+            LogStream stream = openStreams.nextOpen;
+            for (int n = openFiles.get(); n > 0 && stream != openStreams && stream.referenced; n--) {
+                stream.referenced = false;
+                unlink(stream);
+                link(stream);
+                stream = openStreams.nextOpen;
+            }
+            return stream != openStreams ? stream : null;
+        }
+    }
+
+    /**
+     * Append the stream to the list of open streams. Must be called with the lock of the list held.
+     */
+    private void link(LogStream stream) {
+        stream.prevOpen = openStreams.prevOpen;
+        stream.nextOpen = openStreams;
+        openStreams.prevOpen.nextOpen = stream;
+        openStreams.prevOpen = stream;
+    }
+
+    /**
+     * Remove the stream from the list of open streams. Must be called with the lock of the list held.
+     */
+    private void unlink(LogStream stream) {
+        stream.prevOpen.nextOpen = stream.nextOpen;
+        stream.nextOpen.prevOpen = stream.prevOpen;
+        stream.prevOpen = null;
+        stream.nextOpen = null;
+    }
+
+    /**
+     * Flush all log files with unflushed records (flushPolicy INTERVAL).
+     */
+    private void flushLogStreams() {
+        for (LogStream stream : mapLogStreams.values()) {
+            if (stream.dirty) {
+                synchronized (stream) {
+                    if (stream.dirty && stream.buffer != null) {
+                        try {
+                            flushLogStream(stream);
+                        } catch (IOException e) {
+                            reportError(e.getMessage(), e, ErrorManager.FLUSH_FAILURE);
+                        }
+                        stream.dirty = false;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Close log files of idle transactions and forget transactions which are idle for twice the idleTimeout.
+     */
+    private void closeIdleLogStreams() {
+        long now = System.currentTimeMillis();
+        for (LogStream stream : mapLogStreams.values()) {
+            if (now - stream.lastAccess > idleTimeout) {
+                synchronized (stream) {
+                    long idle = now - stream.lastAccess;
+                    if (stream.buffer != null) {
+                        if (idle > idleTimeout) {
+                            closeFile(stream);
+                            evictedFiles.incrementAndGet();
+                        }
+                    } else if (idle > 2 * idleTimeout) {
+                        closeLogStream(stream);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void startScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MdcSplittingAppender-scheduler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            if (idleTimeout > 0) {
+                long period = Math.max(idleTimeout / 2, 1000);
+                scheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeIdleLogStreams();
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+            }
+            if (flushPolicy == FlushPolicy.INTERVAL) {
+                scheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushLogStreams();
+                    }
+                }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+            }
+            if (maxLogAge > 0 || maxLogBytes > 0) {
+                LogJanitor j = new LogJanitor(this, fileLayout, storage == Storage.SEGMENT, dedicatedLogDir, 
+                        maxLogAge, maxLogBytes, janitorFilesPerTick, janitorExclude);
+                if (j.hasLogFiles()) {
+                    janitor = j;
+                    scheduler.scheduleWithFixedDelay(j, janitorInterval, janitorInterval, TimeUnit.MILLISECONDS);
+                } else {
+                    reportError("maxLogAge and maxLogBytes are ignored with fileLayout FLAT, unless dedicatedLogDir is set", 
+                            null, ErrorManager.GENERIC_FAILURE);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Files which are currently written and must not be deleted by the LogJanitor.
+     */
+    Set<File> activeFiles() {
+        HashSet<File> files = new HashSet<File>();
+        for (LogStream stream : mapLogStreams.values()) {
+            File file = stream.file;
+            if (file != null)
+                files.add(file);
+        }
+        for (SegmentLogStore store : segmentStores.values())
+            store.addActiveFiles(files);
+        return files;
+    }
+
+    /**
+     * Add the record to the queue of the writer thread of its transaction.
+     */
+    private void enqueue(PendingRecord pending) {
+        BlockingQueue<PendingRecord>[] qs = queues;
+        if (qs == null)
+            qs = startWriters();
+        BlockingQueue<PendingRecord> q = qs.length == 1 ? qs[0] 
+                : qs[(hash(pending.routing.filename) & 0x7fffffff) % qs.length];
+        if (overflowAction == OverflowAction.BLOCK) {
+            try {
+                q.put(pending);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                droppedRecords.incrementAndGet();
+            }
+        } else if (!q.offer(pending)) {
+            droppedRecords.incrementAndGet();
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private synchronized BlockingQueue<PendingRecord>[] startWriters() {
+        if (queues == null) {
+            int n = writerThreads;
+            int size = Math.max(1, (queueSize + n - 1) / n);
+            BlockingQueue<PendingRecord>[] qs = new BlockingQueue[n];
+            writers = new Thread[n];
+            for (int i = 0; i < n; i++) {
+                qs[i] = new ArrayBlockingQueue<PendingRecord>(size);
+                writers[i] = new Thread(new Writer(qs[i]), "MdcSplittingAppender-writer-" + i);
+                writers[i].setDaemon(true);
+                writers[i].start();
+            }
+            queues = qs;
+        }
+        return queues;
+    }
+
+    private void shutdown() {
+        Thread[] stopped;
+        synchronized (this) {
+            stopped = queues != null ? writers : null;
+            queues = null;
+            writers = null;
+        }
+        // without the lock of the handler, which the writers may need to write the remaining records
+        if (stopped != null) {
+            for (Thread writer : stopped)
+                writer.interrupt();
+            for (Thread writer : stopped) {
+                try {
+                    writer.join(10000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+            if (compressor != null) {
+                compressor.shutdown();
+                try {
+                    compressor.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                compressor = null;
+            }
+            for (LogStream stream : mapLogStreams.values()) {
+                synchronized (stream) {
+                    closeLogStream(stream);
+                }
+            }
+            for (SegmentLogStore store : segmentStores.values()) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    reportError(e.getMessage(), e, ErrorManager.CLOSE_FAILURE);
+                }
+            }
+            segmentStores.clear();
+            // the routings memoized by other threads become unreachable with the replaced ThreadLocal
+            lastRouting.remove();
+            lastRouting = new ThreadLocal<Routing>();
+            unregisterMBean();
+            jmxRegistration = false;
+        }
+    }
+
+    private LogStream getLogStream(String filename) {
+        return filename == null ? null : mapLogStreams.get(filename);
+    }
+
+    private LogStream getLogStream(Routing routing) {
+        LogStream stream = routing.stream;
+        return stream != null && !stream.closed ? stream : getLogStream(routing.filename);
+    }
+
+    private LogStream getOrCreateLogStream(Routing routing) {
+        LogStream stream = routing.stream;
+        if (stream == null || stream.closed)
+            routing.stream = stream = getOrCreateLogStream(routing.filename);
+        return stream;
+    }
+
+    private LogStream getOrCreateLogStream(String filename) {
+        LogStream stream = mapLogStreams.get(filename);
+        if (stream == null) {
+            if (scheduler == null)
+                startScheduler();
+            LogStream newStream = new LogStream(filename, samplingDecision(filename));
+            stream = mapLogStreams.putIfAbsent(filename, newStream);
+            if (stream == null)
+                stream = newStream;
+        }
+        return stream;
+    }
+
+    /**
+     * @return true if the transaction with given log filename is selected by samplingPercentage.
+     */
+    private boolean samplingDecision(String filename) {
+        if (samplingPercentage >= 100)
+            return true;
+        return (hash(filename) & 0x7fffffff) % 10000 < samplingPercentage * 100;
+    }
+
+    private static int hash(String filename) {
+        int h = filename.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return Directory of the log file according to fileLayout.
+     */
+    private File logDirectory(String dir, String filename) {
+        if (dir == null)
+            dir = System.getProperty("jboss.server.log.dir", "log");
+        LogJanitor j = janitor;
+        if (j != null)
+            j.addDirectory(new File(dir));
+        if (fileLayout == FileLayout.FLAT || storage == Storage.SEGMENT)
+            return new File(dir);
+        StringBuilder sb = new StringBuilder(dir.length() + 20).append(dir);
+        if (fileLayout != FileLayout.HASH) {
+            Calendar cal = Calendar.getInstance();
+            sb.append(File.separatorChar).append(cal.get(Calendar.YEAR));
+            appendTwoDigits(sb.append(File.separatorChar), cal.get(Calendar.MONTH) + 1);
+            appendTwoDigits(sb.append(File.separatorChar), cal.get(Calendar.DAY_OF_MONTH));
+            appendTwoDigits(sb.append(File.separatorChar), cal.get(Calendar.HOUR_OF_DAY));
+        }
+        if (fileLayout != FileLayout.TIME) {
+            int h = hash(filename);
+            appendHex(sb.append(File.separatorChar), h >>> 24);
+            appendHex(sb.append(File.separatorChar), (h >>> 16) & 0xff);
+        }
+        return new File(sb.toString());
+    }
+
+    private static void appendTwoDigits(StringBuilder sb, int i) {
+        sb.append((char) ('0' + i / 10)).append((char) ('0' + i % 10));
+    }
+
+    private static void appendHex(StringBuilder sb, int b) {
+        sb.append(Character.forDigit(b >>> 4, 16)).append(Character.forDigit(b & 0x0f, 16));
+    }
+
+    /**
+     * Create the directory if it was not already created by this handler.
+     */
+    private void mkdirs(File dir) {
+        if (createdDirs.containsKey(dir))
+            return;
+        if (dir.mkdirs() || dir.isDirectory()) {
+            if (createdDirs.size() > 10000)
+                createdDirs.clear();
+            createdDirs.put(dir, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Open (or reopen after eviction) the log file of given stream. Must be called with the lock of the stream held.
+     * 
+     * @return false if the file could not be opened (stream is removed from the map).
+     */
+    private boolean openLogStream(LogStream stream, String dir) {
         try {
-            out = mapLogStreams.get(filename);
-            if (out == null) {
-                String dir = MDC.get(mdcPropertyLogDir);
-                if (dir == null)
-                    dir = System.getProperty("jboss.server.log.dir", "log");
-                File logDir = new File(dir);
-                logDir.mkdirs();
-                File logFile = new File(logDir, filename.endsWith(".log") ? filename : filename + ".log");
-                logFile.createNewFile();
-                out = new FileOutputStream(logFile, true);
-                mapLogStreams.put(filename, out);
+            if (stream.opened)
+                reopenedFiles.incrementAndGet();
+            if (storage == Storage.SEGMENT) {
+                if (stream.store == null) {
+                    stream.store = getSegmentStore(logDirectory(dir, stream.filename));
+                    stream.idBytes = stream.filename.getBytes(SegmentLogStore.UTF8);
+                }
+            } else {
+                FileOutputStream out;
+                if (stream.file == null) {
+                    String filename = stream.filename;
+                    File logDir = logDirectory(dir, filename);
+                    mkdirs(logDir);
+                    String logFilename = filename.endsWith(".log") ? filename : filename + ".log";
+                    if (compression == Compression.STREAMING)
+                        logFilename += ".gz";
+                    File logFile = new File(logDir, logFilename);
+                    try {
+                        out = new FileOutputStream(logFile, true);
+                    } catch (FileNotFoundException e) {
+                        // directory may have been removed since it was created
+                        createdDirs.remove(logDir);
+                        mkdirs(logDir);
+                        out = new FileOutputStream(logFile, true);
+                    }
+                    stream.file = logFile;
+                } else {
+                    out = new FileOutputStream(stream.file, true);
+                }
+                if (stream.file.getName().endsWith(".gz"))
+                    stream.gzip = newGZIPOutputStream(out);
+                else
+                    stream.channel = out.getChannel();
             }
+            stream.buffer = takeWriteBuffer(stream.gzip == null);
+            stream.opened = true;
+            stream.referenced = false;
+            synchronized (openStreams) {
+                link(stream);
+            }
+            openFiles.incrementAndGet();
+            openedFiles.incrementAndGet();
+            return true;
         } catch (IOException e) {
             reportError(e.getMessage(), e, ErrorManager.OPEN_FAILURE);
+            stream.closed = true;
+            mapLogStreams.remove(stream.filename, stream);
+            return false;
         }
-        return out;
     }
 
+    /**
+     * The sync flush of GZIPOutputStream is available since Java 7.
+     */
+    private static boolean isSyncFlushSupported() {
+        try {
+            GZIPOutputStream.class.getConstructor(OutputStream.class, int.class, boolean.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private GZIPOutputStream newGZIPOutputStream(FileOutputStream out) throws IOException {
+        try {
+            return new GZIPOutputStream(out, bufferSize, true) {
+                {
+                    def.setLevel(compressionLevel);
+                }
+            };
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Close the given stream of a finished transaction and schedule the compression of its log file.
+     * Must be called with the lock of the stream held.
+     */
+    private void finishLogStream(LogStream stream) {
+        closeLogStream(stream);
+        if (compression == Compression.ON_CLOSE && stream.file != null)
+            compress(stream.filename, stream.file);
+    }
+
+    private void compress(final String filename, final File file) {
+        ExecutorService executor;
+        synchronized (this) {
+            if (compressor == null) {
+                compressor = Executors.newFixedThreadPool(compressionThreads, new ThreadFactory() {
+                    private final AtomicInteger threadNo = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "MdcSplittingAppender-compressor-" + threadNo.getAndIncrement());
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+            }
+            executor = compressor;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gzip(filename, file);
+                } catch (IOException e) {
+                    reportError(e.getMessage(), e, ErrorManager.GENERIC_FAILURE);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compress file to [file].gz and delete it. Skipped if the transaction was reopened meanwhile.
+     */
+    private void gzip(String filename, File file) throws IOException {
+        if (mapLogStreams.containsKey(filename) || !file.isFile())
+            return;
+        File gzFile = new File(file.getPath() + ".gz");
+        File tmpFile = new File(file.getPath() + ".gz.tmp");
+        byte[] buf = new byte[8192];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(tmpFile), buf.length) {
+                {
+                    def.setLevel(compressionLevel);
+                }
+            };
+            try {
+                int n;
+                while ((n = in.read(buf)) > 0)
+                    out.write(buf, 0, n);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (mapLogStreams.containsKey(filename) || !tmpFile.renameTo(gzFile)) {
+            tmpFile.delete();
+            return;
+        }
+        file.delete();
+    }
+
+    /**
+     * Close the given stream and remove it from the map. Must be called with the lock of the stream held.
+     */
+    private void closeLogStream(LogStream stream) {
+        stream.closed = true;
+        stream.clearRetained();
+        mapLogStreams.remove(stream.filename, stream);
+        if (stream.buffer != null) {
+            closeFile(stream);
+        }
+        if (stream.store != null) {
+            try {
+                stream.store.endTransaction(stream.filename);
+            } catch (IOException e) {
+                reportError(e.getMessage(), e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    private SegmentLogStore getSegmentStore(File dir) {
+        SegmentLogStore store = segmentStores.get(dir);
+        if (store == null) {
+            SegmentLogStore newStore = new SegmentLogStore(dir, segmentSize);
+            store = segmentStores.putIfAbsent(dir, newStore);
+            if (store == null)
+                store = newStore;
+        }
+        return store;
+    }
+
+    /**
+     * Close the log file of given stream but keep the stream in the map. Must be called with the lock of the stream held.
+     */
+    private void closeFile(LogStream stream) {
+        try {
+            drain(stream);
+        } catch (IOException e) {
+            reportError(e.getMessage(), e, ErrorManager.WRITE_FAILURE);
+        }
+        try {
+            if (stream.channel != null)
+                stream.channel.close();
+            else if (stream.gzip != null)
+                stream.gzip.close();
+        } catch (IOException e) {
+            reportError(e.getMessage(), e, ErrorManager.CLOSE_FAILURE);
+        }
+        writeBufferPool.offer(stream.buffer);
+        stream.channel = null;
+        stream.gzip = null;
+        stream.buffer = null;
+        stream.dirty = false;
+        synchronized (openStreams) {
+            unlink(stream);
+        }
+        openFiles.decrementAndGet();
+        closedFiles.incrementAndGet();
+    }
+
+    /**
+     * Log stream of one transaction. 
+     * All access to the log file is synchronized on this object, so only records of the same
+     * transaction are serialized.
+     */
+    private static final class LogStream {
+        private final String filename;
+        private volatile File file;
+        private FileChannel channel;
+        private GZIPOutputStream gzip;
+        private SegmentLogStore store;
+        private byte[] idBytes;
+        private volatile WriteBuffer buffer;
+        private boolean opened;
+        private volatile long lastAccess = System.currentTimeMillis();
+        private volatile boolean dirty;
+        private volatile boolean sampled;
+        private volatile boolean closed;
+        private ArrayDeque<String> retained;
+        private int retainedChars;
+        private int discardedRecords;
+        private volatile boolean referenced;
+        private LogStream prevOpen;
+        private LogStream nextOpen;
+
+        private LogStream(String filename, boolean sampled) {
+            this.filename = filename;
+            this.sampled = sampled;
+        }
+
+        /**
+         * @return Empty list of open streams, linked by prevOpen and nextOpen and guarded by the lock of its head.
+         */
+        private static LogStream newListHead() {
+            LogStream head = new LogStream(null, false);
+            head.prevOpen = head;
+            head.nextOpen = head;
+            return head;
+        }
+
+        private void retain(String text, int maxChars) {
+            if (retained == null)
+                retained = new ArrayDeque<String>();
+            retained.add(text);
+            retainedChars += text.length();
+            while (retainedChars > maxChars && retained.size() > 1) {
+                retainedChars -= retained.poll().length();
+                discardedRecords++;
+            }
+        }
+
+        private void clearRetained() {
+            retained = null;
+            retainedChars = 0;
+            discardedRecords = 0;
+        }
+    }
+
+    /**
+     * Reusable encoder and buffers of an open log file. Returned to the pool when the log file is closed.
+     * Compressed log files use heap buffers, as the Deflater only accepts byte arrays.
+     */
+    private static final class WriteBuffer {
+        private final CharsetEncoder encoder;
+        private final CharBuffer chars;
+        private final ByteBuffer bytes;
+
+        private WriteBuffer(Charset charset, int size, boolean direct) {
+            encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            chars = CharBuffer.allocate(1024);
+            bytes = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+    }
+
+    /**
+     * Routing MDC values of a record, resolved once per record and passed through the whole write path.
+     * Caches the log stream of the transaction, so records of a thread with unchanged MDC values 
+     * (or with the same transaction log handle) need no lookup in the stream map.
+     * Does not reference the handler, as it is kept in a ThreadLocal of the handler.
+     */
+    static final class Routing {
+        private final String filename;
+        private final String dir;
+        private final String close;
+        private final boolean closeLog;
+        private volatile LogStream stream;
+
+        private Routing(String filename, String dir, String close) {
+            this.filename = filename;
+            this.dir = dir;
+            this.close = close;
+            this.closeLog = Boolean.valueOf(close);
+        }
+
+        /**
+         * MDC values are compared by identity: a value put again into the MDC is treated as changed.
+         */
+        private boolean matches(String filename, String dir, String close) {
+            return this.filename == filename && this.dir == dir && this.close == close;
+        }
+    }
+
+    /**
+     * Formatted record and its routing, captured by the publishing thread in async mode.
+     * A record without text only closes the log stream of the transaction.
+     */
+    private static final class PendingRecord {
+        private final Routing routing;
+        private final String text;
+        private final int level;
+
+        private PendingRecord(Routing routing, String text, int level) {
+            this.routing = routing;
+            this.text = text;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Single writer of the transactions of one queue. Takes the waiting records in batches to reduce 
+     * the contention on the queue with the logging threads. A failing record is reported and does not end 
+     * the thread, otherwise the logging threads of this queue would block (overflowAction BLOCK) forever.
+     */
+    private final class Writer implements Runnable {
+        private static final int BATCH_SIZE = 64;
+        private final BlockingQueue<PendingRecord> q;
+
+        private Writer(BlockingQueue<PendingRecord> q) {
+            this.q = q;
+        }
+
+        @Override
+        public void run() {
+            ArrayList<PendingRecord> batch = new ArrayList<PendingRecord>(BATCH_SIZE);
+            try {
+                for (;;) {
+                    batch.add(q.take());
+                    q.drainTo(batch, BATCH_SIZE - 1);
+                    for (PendingRecord pending : batch)
+                        write(pending);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // shutdown: write remaining records
+            }
+            PendingRecord pending;
+            while ((pending = q.poll()) != null) {
+                write(pending);
+            }
+        }
+
+        private void write(PendingRecord pending) {
+            try {
+                MdcSplittingAppender.this.write(pending.routing, pending.text, pending.level);
+            } catch (Throwable e) {
+                reportError("Failed to write record of " + pending.routing.filename, 
+                        e instanceof Exception ? (Exception) e : new Exception(e), ErrorManager.GENERIC_FAILURE);
+            }
+        }
+    }
 }
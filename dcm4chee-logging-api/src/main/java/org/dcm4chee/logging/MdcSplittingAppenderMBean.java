@@ -0,0 +1,112 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+/**
+ * Management interface of MdcSplittingAppender. Each handler instance is registered in the platform MBean server
+ * as org.dcm4chee.logging:type=MdcSplittingAppender,name=[jmxName] when the first record is published to it.
+ * 
+ * Counters and latencies are accumulated since the handler was created (or the latencies were reset).
+ * Latencies are in microseconds, exact to 1/8 of their magnitude.
+ */
+public interface MdcSplittingAppenderMBean {
+
+    /**
+     * @return true if MDC splitting was started by "START_MDC_SPLITTING" or setActive.
+     */
+    boolean isActive();
+
+    /**
+     * Start or stop MDC splitting of all handler instances. Records are ignored while not active, 
+     * after setActive(false) also the records of transaction log handles (see TransactionLogs).
+     */
+    void setActive(boolean active);
+
+    int getOpenFiles();
+
+    int getKnownTransactions();
+
+    long getOpenedFiles();
+
+    long getClosedFiles();
+
+    long getEvictedFiles();
+
+    long getReopenedFiles();
+
+    long getRecordsWritten();
+
+    long getBytesWritten();
+
+    long getDroppedRecords();
+
+    long getDeletedFiles();
+
+    long getIoErrors();
+
+    /**
+     * @return Number of records waiting for the writer threads, 0 if not in async mode.
+     */
+    int getQueueDepth();
+
+    long getWriteLatency50();
+
+    long getWriteLatency99();
+
+    long getWriteLatency999();
+
+    long getFlushLatency50();
+
+    long getFlushLatency99();
+
+    long getFlushLatency999();
+
+    void resetLatencies();
+
+    /**
+     * @return Log filenames (transaction IDs) of the transactions with an open log file.
+     */
+    String[] listOpenTransactions();
+
+    /**
+     * Close the log of the given transaction as if its close record was logged.
+     * 
+     * @return false if the transaction is not known.
+     */
+    boolean forceClose(String transactionID);
+}
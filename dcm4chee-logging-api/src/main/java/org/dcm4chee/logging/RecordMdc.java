@@ -0,0 +1,74 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import java.util.logging.LogRecord;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.slf4j.MDC;
+
+/**
+ * Access to the MDC values of a log record.
+ * 
+ * Records of the JBoss LogManager (ExtLogRecord) carry their own MDC (copied e.g. by the async-handler
+ * before the record is passed to another thread). For all other records the MDC of the current thread is used.
+ */
+final class RecordMdc {
+
+    private static final boolean EXT_LOG_RECORD_AVAILABLE = isAvailable("org.jboss.logmanager.ExtLogRecord");
+
+    private RecordMdc() {
+    }
+
+    static String get(LogRecord record, String key) {
+        if (key == null)
+            return null;
+        if (EXT_LOG_RECORD_AVAILABLE && record instanceof ExtLogRecord)
+            return ((ExtLogRecord) record).getMdc(key);
+        return MDC.get(key);
+    }
+
+    private static boolean isAvailable(String className) {
+        try {
+            Class.forName(className, false, RecordMdc.class.getClassLoader());
+            return true;
+        } catch (Throwable ignore) {
+            return false;
+        }
+    }
+}
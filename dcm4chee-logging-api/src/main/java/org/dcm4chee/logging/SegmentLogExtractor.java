@@ -0,0 +1,236 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Reconstruct the log of a single transaction from the segment files written by MdcSplittingAppender
+ * with storage SEGMENT.
+ * 
+ * Usage: java -cp dcm4chee-logging-api.jar org.dcm4chee.logging.SegmentLogExtractor [-scan] segmentDir transactionID [outFile]
+ * 
+ * The frames of the transaction are found by the index file of each segment. Segments without completed index 
+ * (the segment which is currently written or a segment left by a crash) are scanned, which also finds records 
+ * of transactions which are not closed yet. With -scan all segments are scanned.
+ * The log records are written unchanged (encoded with the charset of the handler) to outFile or stdout.
+ */
+public class SegmentLogExtractor {
+
+    private final File dir;
+    private boolean scan;
+
+    public SegmentLogExtractor(File dir) {
+        this.dir = dir;
+    }
+
+    public SegmentLogExtractor setScan(boolean scan) {
+        this.scan = scan;
+        return this;
+    }
+
+    /**
+     * Write the log records of the transaction with given ID to out.
+     * 
+     * @return number of frames written
+     */
+    public int extract(String id, OutputStream out) throws IOException {
+        File[] segments = SegmentLogStore.listSegments(dir);
+        Arrays.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return SegmentLogStore.segmentNo(f1.getName()) - SegmentLogStore.segmentNo(f2.getName());
+            }
+        });
+        int frames = 0;
+        for (File segment : segments) {
+            String name = segment.getName();
+            File index = new File(dir, name.substring(0, name.length() - SegmentLogStore.SEGMENT_SUFFIX.length()) 
+                    + SegmentLogStore.INDEX_SUFFIX);
+            RandomAccessFile raf = new RandomAccessFile(segment, "r");
+            try {
+                frames += scan || !isCompleted(index, raf.length()) 
+                        ? scanSegment(raf, id, out) 
+                        : extractIndexed(raf, index, id, out);
+            } finally {
+                raf.close();
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * @return true if the last line of the index is the end line with the length of the segment, which is written 
+     *         when the segment is rolled over or closed.
+     */
+    private static boolean isCompleted(File index, long segmentLength) throws IOException {
+        long length = index.length();
+        if (length == 0)
+            return false;
+        RandomAccessFile raf = new RandomAccessFile(index, "r");
+        try {
+            int n = (int) Math.min(length, 21);
+            byte[] b = new byte[n];
+            raf.seek(length - n);
+            raf.readFully(b);
+            String tail = new String(b, "ISO-8859-1");
+            int start = tail.lastIndexOf('\n', n - 2) + 1;
+            return tail.endsWith("\n") && tail.charAt(start) == '\t'
+                    && tail.substring(start + 1, n - 1).equals(Long.toString(segmentLength));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private int extractIndexed(RandomAccessFile raf, File index, String id, OutputStream out) throws IOException {
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), SegmentLogStore.UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab > 0 && line.substring(0, tab).equals(id)) {
+                    ArrayList<Long> chain = new ArrayList<Long>();
+                    for (long offset = Long.parseLong(line.substring(tab + 1)); offset >= 0; offset = readPrevOffset(raf, offset))
+                        chain.add(offset);
+                    Collections.reverse(chain);
+                    offsets.addAll(chain);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        Collections.sort(offsets);
+        byte[] buf = new byte[8192];
+        for (Long offset : offsets) {
+            raf.seek(offset.longValue());
+            int len = raf.readInt();
+            raf.readLong();
+            int idLen = raf.readUnsignedShort();
+            raf.skipBytes(idLen);
+            copy(raf, len - SegmentLogStore.FRAME_HEADER_LENGTH + 4 - idLen, out, buf);
+        }
+        return offsets.size();
+    }
+
+    private static long readPrevOffset(RandomAccessFile raf, long offset) throws IOException {
+        raf.seek(offset + 4);
+        return raf.readLong();
+    }
+
+    private int scanSegment(RandomAccessFile raf, String id, OutputStream out) throws IOException {
+        byte[] idBytes = id.getBytes(SegmentLogStore.UTF8);
+        byte[] frameId = new byte[0xffff];
+        byte[] buf = new byte[8192];
+        long length = raf.length();
+        int frames = 0;
+        long offset = 0;
+        try {
+            while (offset + SegmentLogStore.FRAME_HEADER_LENGTH <= length) {
+                raf.seek(offset);
+                int len = raf.readInt();
+                raf.readLong();
+                int idLen = raf.readUnsignedShort();
+                raf.readFully(frameId, 0, idLen);
+                int dataLen = len - SegmentLogStore.FRAME_HEADER_LENGTH + 4 - idLen;
+                if (dataLen < 0 || offset + 4 + len > length)
+                    break; // incomplete frame at the end of the segment
+                if (idLen == idBytes.length && equals(idBytes, frameId, idLen)) {
+                    copy(raf, dataLen, out, buf);
+                    frames++;
+                }
+                offset += 4 + len;
+            }
+        } catch (EOFException e) {
+            // incomplete frame at the end of the segment
+        }
+        return frames;
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int len) {
+        for (int i = 0; i < len; i++)
+            if (a[i] != b[i])
+                return false;
+        return true;
+    }
+
+    private static void copy(RandomAccessFile raf, int len, OutputStream out, byte[] buf) throws IOException {
+        while (len > 0) {
+            int n = raf.read(buf, 0, Math.min(len, buf.length));
+            if (n < 0)
+                throw new EOFException();
+            out.write(buf, 0, n);
+            len -= n;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int i = 0;
+        boolean scan = args.length > 0 && "-scan".equals(args[0]);
+        if (scan)
+            i++;
+        if (args.length - i < 2) {
+            System.err.println("Usage: java " + SegmentLogExtractor.class.getName() 
+                    + " [-scan] segmentDir transactionID [outFile]");
+            System.exit(1);
+        }
+        SegmentLogExtractor extractor = new SegmentLogExtractor(new File(args[i])).setScan(scan);
+        OutputStream out = args.length - i > 2 ? new FileOutputStream(args[i + 2]) : System.out;
+        try {
+            int frames = extractor.extract(args[i + 1], out);
+            if (frames == 0)
+                System.err.println("No log records found for transaction " + args[i + 1]);
+        } finally {
+            out.flush();
+            if (out != System.out)
+                out.close();
+        }
+    }
+}
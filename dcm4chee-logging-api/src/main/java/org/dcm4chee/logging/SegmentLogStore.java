@@ -0,0 +1,230 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Storage of the transaction logs of all transactions in shared, rolling segment files.
+ * 
+ * The log records are appended as frames to the current segment file (mdc-[segment number].seg):
+ * <pre>
+ *   int    length of the frame without this field
+ *   long   offset of the previous frame of the same transaction in this segment or -1
+ *   short  length of the transaction ID
+ *   byte[] transaction ID (UTF-8)
+ *   byte[] log records (encoded with the charset of the handler)
+ * </pre>
+ * When a transaction is closed or the segment is rolled over, the line "[transaction ID] TAB [offset of last frame]"
+ * is appended to the index file of the segment (mdc-[segment number].idx) and flushed. When the segment is rolled 
+ * over or closed, the line "TAB [length of the segment]" completes the index.
+ * SegmentLogExtractor uses a completed index to reconstruct the log of a single transaction, and scans segments 
+ * without completed index (the current segment or a segment of a crashed handler).
+ * 
+ * Each store creates new segment files with the next free segment number, so handlers sharing a directory 
+ * do not write to the same segment.
+ */
+final class SegmentLogStore {
+
+    static final String PREFIX = "mdc-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String INDEX_SUFFIX = ".idx";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int FRAME_HEADER_LENGTH = 14;
+
+    private final File dir;
+    private final long segmentSize;
+    private final HashMap<String, Long> lastFrames = new HashMap<String, Long>();
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+    private ByteBuffer header = ByteBuffer.allocateDirect(FRAME_HEADER_LENGTH + 256);
+    private int segmentNo;
+    private File segmentFile;
+    private FileChannel segment;
+    private Writer index;
+    private long position;
+
+    SegmentLogStore(File dir, long segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        dir.mkdirs();
+        this.segmentNo = lastSegmentNo(dir);
+    }
+
+    File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Append the remaining bytes of data as one frame of the transaction with given ID.
+     */
+    synchronized void append(String id, byte[] idBytes, ByteBuffer data) throws IOException {
+        int len = FRAME_HEADER_LENGTH - 4 + idBytes.length + data.remaining();
+        if (segment == null || position > 0 && position + 4 + len > segmentSize)
+            roll();
+        Long prev = lastFrames.put(id, position);
+        if (header.capacity() < FRAME_HEADER_LENGTH + idBytes.length)
+            header = ByteBuffer.allocateDirect(FRAME_HEADER_LENGTH + idBytes.length);
+        header.clear();
+        header.putInt(len).putLong(prev == null ? -1L : prev.longValue())
+            .putShort((short) idBytes.length).put(idBytes).flip();
+        frame[0] = header;
+        frame[1] = data;
+        position += 4 + len;
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (header.hasRemaining() || data.hasRemaining()) {
+                try {
+                    segment.write(frame);
+                } catch (ClosedByInterruptException e) {
+                    // channel was closed by an interrupt: continue with the remaining bytes
+                    interrupted |= Thread.interrupted();
+                    segment = new FileOutputStream(segmentFile, true).getChannel();
+                }
+            }
+        } finally {
+            frame[1] = null;
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add the transaction with given ID to the index of the current segment.
+     */
+    synchronized void endTransaction(String id) throws IOException {
+        Long last = lastFrames.remove(id);
+        if (last != null) {
+            writeIndex(id, last.longValue());
+            index.flush();
+        }
+    }
+
+    /**
+     * Add the files of the current segment, which are still written, to given collection.
+     */
+    synchronized void addActiveFiles(Collection<File> files) {
+        if (segment != null) {
+            files.add(segmentFile);
+            files.add(new File(dir, segmentFileName(segmentNo, INDEX_SUFFIX)));
+        }
+    }
+
+    synchronized void close() throws IOException {
+        closeSegment();
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+        do {
+            segmentNo++;
+            segmentFile = new File(dir, segmentFileName(segmentNo, SEGMENT_SUFFIX));
+        } while (!segmentFile.createNewFile()); // used by another handler
+        index = new OutputStreamWriter(
+                new FileOutputStream(new File(dir, segmentFileName(segmentNo, INDEX_SUFFIX))), UTF8);
+        segment = new FileOutputStream(segmentFile, true).getChannel();
+        position = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment == null)
+            return;
+        try {
+            for (Map.Entry<String, Long> e : lastFrames.entrySet())
+                writeIndex(e.getKey(), e.getValue().longValue());
+            lastFrames.clear();
+            writeIndex("", position);
+            index.close();
+        } finally {
+            segment.close();
+            segment = null;
+            index = null;
+        }
+    }
+
+    private void writeIndex(String id, long offset) throws IOException {
+        index.write(id);
+        index.write('\t');
+        index.write(Long.toString(offset));
+        index.write('\n');
+    }
+
+    static String segmentFileName(int segmentNo, String suffix) {
+        String no = Integer.toString(segmentNo);
+        StringBuilder sb = new StringBuilder(PREFIX);
+        for (int i = no.length(); i < 10; i++)
+            sb.append('0');
+        return sb.append(no).append(suffix).toString();
+    }
+
+    static int segmentNo(String segmentFileName) {
+        try {
+            return Integer.parseInt(segmentFileName.substring(PREFIX.length(), segmentFileName.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static File[] listSegments(File dir) {
+        File[] segments = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SEGMENT_SUFFIX) && segmentNo(name) >= 0;
+            }
+        });
+        return segments == null ? new File[0] : segments;
+    }
+
+    private static int lastSegmentNo(File dir) {
+        int last = 0;
+        for (File segment : listSegments(dir))
+            last = Math.max(last, segmentNo(segment.getName()));
+        return last;
+    }
+}
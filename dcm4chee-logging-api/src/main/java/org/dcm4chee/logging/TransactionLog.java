@@ -0,0 +1,142 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import java.io.Closeable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle of the log of one transaction, see TransactionLogs.
+ * 
+ * Keeps the routing of each MdcSplittingAppender which has written a record of the transaction, 
+ * so these records need no lookup of the log stream.
+ * 
+ * Data captured in async mode (see AsyncCaptureLogger) is logged after the write which captured it, possibly 
+ * after the handle was closed. Each queued chunk holds the handle open, the log files are closed after the last one.
+ */
+public final class TransactionLog implements Closeable {
+
+    private final String dir;
+    private final String id;
+    final TransactionLog previous;
+    final CopyOnWriteArrayList<Binding> bindings = new CopyOnWriteArrayList<Binding>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    /** 1 until closed, plus the number of queued captured chunks. The log files are closed at 0. */
+    private final AtomicInteger holds = new AtomicInteger(1);
+
+    TransactionLog(String dir, String id, TransactionLog previous) {
+        this.dir = dir;
+        this.id = id;
+        this.previous = previous;
+    }
+
+    public String getDir() {
+        return dir;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * @return true if the log files of the transaction are closed, so no more records are routed by this handle.
+     */
+    boolean isFinished() {
+        return holds.get() == 0;
+    }
+
+    /**
+     * Unbind this handle from the calling thread (if bound) and close the log file of the transaction 
+     * in all handlers. Records already queued in async mode are written before the log file is closed.
+     * Captured data still queued by an AsyncCaptureLogger is logged before the log file is closed.
+     */
+    @Override
+    public void close() {
+        TransactionLogs.unbind(this);
+        if (closed.compareAndSet(false, true))
+            release();
+    }
+
+    /**
+     * Keep the log files open for a captured chunk which is logged later.
+     * 
+     * @return false if the log files are already closed.
+     */
+    boolean hold() {
+        for (;;) {
+            int n = holds.get();
+            if (n == 0)
+                return false;
+            if (holds.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Release a hold of a captured chunk or of the open handle. The last one closes the log files.
+     */
+    void release() {
+        if (holds.decrementAndGet() == 0)
+            for (Binding binding : bindings)
+                binding.handler.finish(binding.routing);
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionLog[" + id + "]";
+    }
+
+    /**
+     * Routing of one handler which has written a record of the transaction.
+     */
+    static final class Binding {
+        final MdcSplittingAppender handler;
+        final MdcSplittingAppender.Routing routing;
+
+        Binding(MdcSplittingAppender handler, MdcSplittingAppender.Routing routing) {
+            this.handler = handler;
+            this.routing = routing;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import org.slf4j.MDC;
+
+/**
+ * Explicit alternative to the MDC properties of MdcSplittingAppender. 
+ * 
+ * TransactionLogs.open binds a transaction log handle to the calling thread. All records logged by this thread 
+ * are written to the log of the transaction by each MdcSplittingAppender (regardless of "START_MDC_SPLITTING"
+ * and of the MDC properties) until the handle is closed. Closing the handle closes the log file of the transaction
+ * without a close record, so it does not depend on the level of the root logger.
+ * 
+ * Handles may be nested: closing a handle rebinds the handle which was bound when it was opened.
+ * The handle is bound to the thread, so it is not seen by a handler which is wrapped in an async-handler; 
+ * use the async property of MdcSplittingAppender instead.
+ * 
+ * Tasks executed by other threads (executor pools, virtual threads) are routed to the transaction log of the
+ * submitting thread if they are wrapped by wrap or submitted to an executor returned by executor. 
+ * If no handle is bound to the submitting thread, the values of the MDC properties for log directory and 
+ * log filename of the MdcSplittingAppenders are captured instead; the MDC property to close the log file and 
+ * other MDC values are not propagated. The transaction log should be closed by the submitting thread after the 
+ * tasks are finished. Records of tasks still running after the log file was closed are discarded if the tasks
+ * run with the handle, as the handlers ignore a closed handle. With the MDC values, such records open the log file
+ * again (append mode), which is then closed after the idleTimeout of the handler.
+ */
+public final class TransactionLogs {
+
+    private static final ThreadLocal<TransactionLog> current = new ThreadLocal<TransactionLog>();
+    private static volatile String[] routingKeys = {};
+
+    private TransactionLogs() {
+    }
+
+    /**
+     * Bind a new transaction log handle to the calling thread.
+     * 
+     * @param dir Log directory, null for the default log directory of the handlers.
+     * @param id  Transaction ID, used as log filename. Should be unique for each transaction.
+     */
+    public static TransactionLog open(String dir, String id) {
+        if (id == null)
+            throw new NullPointerException("id");
+        TransactionLog log = new TransactionLog(dir, id, current.get());
+        current.set(log);
+        return log;
+    }
+
+    /**
+     * @return The transaction log handle bound to the calling thread or null.
+     */
+    public static TransactionLog current() {
+        return current.get();
+    }
+
+    /**
+     * @return Task which runs with the transaction log handle (or the routing MDC values) of the calling thread,
+     *         or the task itself if there is neither.
+     */
+    public static Runnable wrap(final Runnable task) {
+        final TransactionLog log = current.get();
+        final RoutingMdc mdc = log == null ? RoutingMdc.capture() : null;
+        if (log == null && mdc == null)
+            return task;
+        return new Runnable() {
+            @Override
+            public void run() {
+                TransactionLog prev = bind(log);
+                String[] prevMdc = mdc != null ? mdc.apply() : null;
+                try {
+                    task.run();
+                } finally {
+                    if (mdc != null)
+                        mdc.restore(prevMdc);
+                    bind(prev);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return Task which runs with the transaction log handle (or the routing MDC values) of the calling thread,
+     *         or the task itself if there is neither.
+     */
+    public static <V> Callable<V> wrap(final Callable<V> task) {
+        final TransactionLog log = current.get();
+        final RoutingMdc mdc = log == null ? RoutingMdc.capture() : null;
+        if (log == null && mdc == null)
+            return task;
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                TransactionLog prev = bind(log);
+                String[] prevMdc = mdc != null ? mdc.apply() : null;
+                try {
+                    return task.call();
+                } finally {
+                    if (mdc != null)
+                        mdc.restore(prevMdc);
+                    bind(prev);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return Executor which runs each task with the transaction log handle (or the routing MDC values) 
+     *         of the submitting thread.
+     */
+    public static Executor executor(final Executor executor) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                executor.execute(wrap(task));
+            }
+        };
+    }
+
+    /**
+     * Bind given handle (or none) to the calling thread.
+     * 
+     * @return The handle which was bound before.
+     */
+    static TransactionLog bind(TransactionLog log) {
+        TransactionLog prev = current.get();
+        if (log != null)
+            current.set(log);
+        else
+            current.remove();
+        return prev;
+    }
+
+    static void unbind(TransactionLog log) {
+        if (current.get() == log) {
+            if (log.previous != null)
+                current.set(log.previous);
+            else
+                current.remove();
+        }
+    }
+
+    /**
+     * Register an MDC property used by an MdcSplittingAppender to route records, which is propagated by wrap.
+     */
+    static synchronized void addRoutingKey(String key) {
+        if (key == null || Arrays.asList(routingKeys).contains(key))
+            return;
+        String[] keys = Arrays.copyOf(routingKeys, routingKeys.length + 1);
+        keys[routingKeys.length] = key;
+        routingKeys = keys;
+    }
+
+    /**
+     * Values of the routing MDC properties captured by the submitting thread.
+     */
+    static final class RoutingMdc {
+        private final String[] keys;
+        private final String[] values;
+
+        private RoutingMdc(String[] keys, String[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        /**
+         * @return null if none of the routing MDC properties is set.
+         */
+        static RoutingMdc capture() {
+            String[] keys = routingKeys;
+            String[] values = new String[keys.length];
+            boolean found = false;
+            for (int i = 0; i < keys.length; i++)
+                found |= (values[i] = MDC.get(keys[i])) != null;
+            return found ? new RoutingMdc(keys, values) : null;
+        }
+
+        /**
+         * Set the captured values in the MDC of the calling thread.
+         * 
+         * @return The previous values.
+         */
+        String[] apply() {
+            String[] prev = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                prev[i] = MDC.get(keys[i]);
+                put(keys[i], values[i]);
+            }
+            return prev;
+        }
+
+        void restore(String[] prev) {
+            for (int i = 0; i < keys.length; i++)
+                put(keys[i], prev[i]);
+        }
+
+        private static void put(String key, String value) {
+            if (value != null)
+                MDC.put(key, value);
+            else
+                MDC.remove(key);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4chee.logging.LoggingBufferedOutputStream.AbstractByteSliceTransformer;
+import org.dcm4chee.logging.LoggingBufferedOutputStream.ByteArrayTransformer;
+import org.dcm4chee.logging.LoggingBufferedOutputStream.ByteSliceTransformer;
+import org.dcm4chee.logging.TransactionLogs.RoutingMdc;
+import org.slf4j.Logger;
+
+/**
+ * Logging rules of the written data shared by LoggingBufferedOutputStream and LoggingWritableByteChannel:
+ * enableLog, maxLogLen, charset, transformer and async logger. 
+ * Not thread safe, called with the lock of the stream or channel held.
+ */
+final class WriteCapture {
+
+    /** Two hex digits of each byte value. */
+    private static final char[] HEX_CHARS = new char[512];
+    /** Printable ASCII character of each byte value, '.' for all others. */
+    private static final char[] TEXT_CHARS = new char[256];
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HEX_CHARS[i << 1] = HEX_DIGITS[i >>> 4];
+            HEX_CHARS[(i << 1) + 1] = HEX_DIGITS[i & 0x0f];
+            TEXT_CHARS[i] = i >= 0x20 && i < 0x7f ? (char) i : '.';
+        }
+    }
+
+    final Logger log;
+    boolean enableActivityLog;
+    private final String msgHeader;
+    private final int chunkSize;
+    private boolean enableLog;
+    private Charset charset = Charset.forName("ISO-8859-1");
+    private int maxLogLen = Integer.MAX_VALUE;
+    private ByteSliceTransformer transformer;
+
+    private AsyncCaptureLogger asyncLogger;
+    private final ConcurrentLinkedQueue<LogChunk> freeChunks = new ConcurrentLinkedQueue<LogChunk>();
+    private final AtomicLong droppedLogChunks = new AtomicLong();
+    private long droppedSinceLastChunk;
+
+    /**
+     * @param chunkSize Minimal size of the copies of the data in async mode, so they can be reused.
+     */
+    WriteCapture(Logger log, String msgHeader, ByteArrayTransformer transformer, int chunkSize) {
+        this.log = log;
+        this.msgHeader = msgHeader;
+        this.chunkSize = chunkSize;
+        setTransformer(transformer);
+    }
+
+    boolean isEnableLog() {
+        return enableLog;
+    }
+
+    void setEnableLog(boolean enableLog) {
+        this.enableLog = enableLog;
+    }
+
+    void setCharset(String charsetName) {
+        this.charset = Charset.forName(charsetName);
+    }
+
+    void setMaxLogLen(int maxLogLen) {
+        this.maxLogLen = maxLogLen;
+    }
+
+    /**
+     * @param transformer null for the default, which logs the data decoded with the charset.
+     */
+    void setTransformer(ByteArrayTransformer transformer) {
+        this.transformer = transformer == null 
+                ? new StringTransformer() 
+                : LoggingBufferedOutputStream.adapt(transformer);
+    }
+
+    void setAsyncLogger(AsyncCaptureLogger asyncLogger) {
+        this.asyncLogger = asyncLogger;
+    }
+
+    long getDroppedLogChunks() {
+        return droppedLogChunks.get();
+    }
+
+    /**
+     * @return true if written data is logged, so callers can skip preparing the data otherwise.
+     */
+    boolean isLogging() {
+        return enableLog && maxLogLen > 0;
+    }
+
+    /**
+     * Log len bytes of data, starting at off.
+     */
+    void log(byte[] data, int off, int len) {
+        if (enableLog && len > 0) {
+            if (maxLogLen > 0) {
+                int n = Math.min(len, maxLogLen);
+                String postfix = len > maxLogLen ? "...(truncated)" : null;
+                if (asyncLogger != null) {
+                    LogChunk chunk = takeChunk(n);
+                    System.arraycopy(data, off, chunk.data, 0, n);
+                    submit(chunk, n, postfix);
+                } else {
+                    try {
+                        transformer.log(msgHeader, data, off, n, postfix);
+                    } catch (Exception x) {
+                        log.warn("Logging failed!", x);
+                    }
+                }
+                maxLogLen -= len;
+            } else if (enableActivityLog) {
+                log.debug("##### log ignored! maxLogLen reached!");
+            }
+        }
+    }
+
+    /**
+     * Log the remaining bytes of data, without changing its position.
+     */
+    void log(ByteBuffer data) {
+        int len = data.remaining();
+        if (enableLog && len > 0) {
+            if (maxLogLen > 0) {
+                int n = Math.min(len, maxLogLen);
+                String postfix = len > maxLogLen ? "...(truncated)" : null;
+                if (n < len) {
+                    data = data.duplicate();
+                    data.limit(data.position() + n);
+                }
+                if (asyncLogger != null) {
+                    LogChunk chunk = takeChunk(n);
+                    data.duplicate().get(chunk.data, 0, n);
+                    submit(chunk, n, postfix);
+                } else {
+                    try {
+                        transformer.log(msgHeader, data, postfix);
+                    } catch (Exception x) {
+                        log.warn("Logging failed!", x);
+                    }
+                }
+                maxLogLen -= len;
+            } else if (enableActivityLog) {
+                log.debug("##### log ignored! maxLogLen reached!");
+            }
+        }
+    }
+
+    private LogChunk takeChunk(int len) {
+        LogChunk chunk = freeChunks.poll();
+        if (chunk == null)
+            chunk = new LogChunk();
+        if (chunk.data == null || chunk.data.length < len)
+            chunk.data = new byte[Math.max(len, chunkSize)];
+        return chunk;
+    }
+
+    /**
+     * Queue the chunk with the transaction log handle (which is held open until the chunk is logged) or 
+     * the routing MDC values of the writing thread.
+     */
+    private void submit(LogChunk chunk, int len, String postfix) {
+        chunk.len = len;
+        chunk.postfix = postfix;
+        TransactionLog txLog = TransactionLogs.current();
+        if (txLog != null) {
+            if (!txLog.hold()) {
+                // written after the log files of the transaction were closed
+                droppedLogChunks.incrementAndGet();
+                chunk.release();
+                return;
+            }
+            chunk.txLog = txLog;
+        } else {
+            chunk.mdc = RoutingMdc.capture();
+        }
+        chunk.droppedBefore = droppedSinceLastChunk;
+        if (asyncLogger.offer(chunk)) {
+            droppedSinceLastChunk = 0;
+        } else {
+            droppedSinceLastChunk++;
+            droppedLogChunks.incrementAndGet();
+            chunk.release();
+        }
+    }
+
+    /**
+     * Copy of captured data, logged by the background thread of the async logger. Returned to the pool 
+     * after logging.
+     */
+    private final class LogChunk implements AsyncCaptureLogger.Chunk {
+        private byte[] data;
+        private int len;
+        private String postfix;
+        private TransactionLog txLog;
+        private RoutingMdc mdc;
+        private long droppedBefore;
+
+        @Override
+        public void run() {
+            TransactionLog prev = TransactionLogs.bind(txLog);
+            String[] prevMdc = mdc != null ? mdc.apply() : null;
+            try {
+                if (droppedBefore > 0)
+                    log.warn(droppedBefore + " captured chunks not logged (queue of async logger full)");
+                transformer.log(msgHeader, data, 0, len, postfix);
+            } catch (Exception x) {
+                log.warn("Logging failed!", x);
+            } finally {
+                if (mdc != null)
+                    mdc.restore(prevMdc);
+                TransactionLogs.bind(prev);
+                release();
+            }
+        }
+
+        @Override
+        public void discard() {
+            droppedLogChunks.incrementAndGet();
+            release();
+        }
+
+        private void release() {
+            if (txLog != null)
+                txLog.release();
+            txLog = null;
+            mdc = null;
+            postfix = null;
+            freeChunks.offer(this);
+        }
+    }
+
+    /**
+     * Logs the data decoded with the charset of the capture. The decoder and the char buffer are reused. 
+     * A multi-byte character split between two chunks is decoded with the next chunk.
+     * Buffers are decoded directly, so direct buffers are not copied.
+     */
+    class StringTransformer extends AbstractByteSliceTransformer {
+
+        private CharsetDecoder decoder;
+        /** Incomplete character sequence at the end of the previous chunk. */
+        private final ByteBuffer carry = ByteBuffer.allocate(16);
+        private char[] chars;
+
+        @Override
+        public void log(String msgHeader, byte[] b, int off, int len, String msgPostfix) {
+            decode(msgHeader, ByteBuffer.wrap(b, off, len), msgPostfix);
+        }
+
+        @Override
+        public void log(String msgHeader, ByteBuffer buf, String msgPostfix) {
+            decode(msgHeader, buf.duplicate(), msgPostfix);
+        }
+
+        /**
+         * Decode and log the remaining bytes of in, which are consumed.
+         */
+        private void decode(String msgHeader, ByteBuffer in, String msgPostfix) {
+            CharsetDecoder dec = decoder();
+            if (!log.isInfoEnabled()) {
+                carry.clear();
+                dec.reset();
+                return;
+            }
+            int size = (msgHeader != null ? msgHeader.length() : 0) 
+                    + (int) Math.ceil((in.remaining() + carry.position()) * (double) dec.maxCharsPerByte()) + 1
+                    + (msgPostfix != null ? msgPostfix.length() : 0);
+            if (chars == null || chars.length < size)
+                chars = new char[size];
+            CharBuffer out = CharBuffer.wrap(chars);
+            if (msgHeader != null)
+                out.put(msgHeader);
+            if (carry.position() > 0)
+                decodeCarry(dec, in, out);
+            dec.decode(in, out, false);
+            if (in.remaining() > carry.remaining()) {
+                // too long to be carried over: replaced as malformed input, the next chunk starts a new input
+                dec.decode(in, out, true);
+                dec.flush(out);
+                dec.reset();
+            }
+            carry.put(in);
+            if (msgPostfix != null)
+                out.put(msgPostfix);
+            log.info(new String(chars, 0, out.position()));
+        }
+
+        private CharsetDecoder decoder() {
+            if (decoder == null || !decoder.charset().equals(charset)) {
+                decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                carry.clear();
+            }
+            return decoder;
+        }
+
+        /**
+         * Decode the carried over bytes, completed by the first bytes of in. 
+         * Advances in to the first byte which is not decoded yet.
+         */
+        private void decodeCarry(CharsetDecoder dec, ByteBuffer in, CharBuffer out) {
+            int carried = carry.position();
+            int pos = in.position();
+            int n = Math.min(carry.remaining(), in.remaining());
+            for (int i = 0; i < n; i++)
+                carry.put(in.get(pos + i));
+            carry.flip();
+            dec.decode(carry, out, false);
+            if (carry.position() < carried) {
+                // still incomplete: keep all bytes for the next chunk
+                carry.compact();
+                in.position(pos + n);
+                return;
+            }
+            // bytes of the chunk after the completed character are decoded again from the chunk
+            int consumed = carry.position() - carried;
+            carry.clear();
+            in.position(pos + consumed);
+        }
+    }
+
+    /**
+     * Logs the data as hex dump with 16 bytes per line: offset, hex values and printable ASCII characters.
+     * The offset continues over all logged data of the capture. Each block of blockSize bytes is logged 
+     * as one message, starting with msgHeader. The lines are built from lookup tables into a reused char buffer.
+     */
+    class HexTransformer extends AbstractByteSliceTransformer {
+
+        private int blockSize = 256;
+
+        private final char[] LINE_CHARS = "00000000 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00   ................".toCharArray();
+        private static final int HEX_START_POS = 9;
+        private static final int TEXT_START_POS = 59;
+        private static final int BYTES_PER_LINE = 16;
+        
+        private int logIdx = 0;
+        private char[] chars;
+        
+        @Override
+        public void log(String msgHeader, byte[] b, int off, int len, String msgPostfix) {
+            if (!log.isInfoEnabled()) {
+                logIdx += len;
+                return;
+            }
+            int start = off;
+            int end = off + len;
+            do {
+                int n = Math.min(end - start, blockSize);
+                boolean last = start + n == end;
+                String postfix = last ? msgPostfix : null;
+                int lines = ((logIdx & 0x0f) + n + BYTES_PER_LINE - 1) / BYTES_PER_LINE;
+                int size = (msgHeader != null ? msgHeader.length() : 0) 
+                        + lines * (LINE_CHARS.length + 1) 
+                        + (postfix != null ? postfix.length() + 1 : 0);
+                if (chars == null || chars.length < size)
+                    chars = new char[size];
+                int pos = 0;
+                if (msgHeader != null) {
+                    msgHeader.getChars(0, msgHeader.length(), chars, 0);
+                    pos = msgHeader.length();
+                }
+                pos = appendLines(b, start, n, pos);
+                if (postfix != null) {
+                    chars[pos++] = '\n';
+                    postfix.getChars(0, postfix.length(), chars, pos);
+                    pos += postfix.length();
+                }
+                log.info(new String(chars, 0, pos));
+                start += n;
+            } while (start < end);
+        }
+
+        /**
+         * Append the dump lines of n bytes of b, starting at position pos of the char buffer. 
+         * Columns of a partial first or last line are left blank.
+         * 
+         * @return Position after the last line.
+         */
+        private int appendLines(byte[] b, int start, int n, int pos) {
+            char[] chars = this.chars;
+            int i = start;
+            int end = start + n;
+            while (i < end) {
+                int col = logIdx & 0x0f;
+                int endCol = Math.min(BYTES_PER_LINE, col + end - i);
+                chars[pos++] = '\n';
+                System.arraycopy(LINE_CHARS, 0, chars, pos, LINE_CHARS.length);
+                for (int k = 7, offset = logIdx - col; k >= 0; k--, offset >>>= 4)
+                    chars[pos + k] = HEX_DIGITS[offset & 0x0f];
+                for (int c = 0, hexPos = pos + HEX_START_POS; c < BYTES_PER_LINE; c++, hexPos += 3) {
+                    if (c < col || c >= endCol) {
+                        chars[hexPos] = ' ';
+                        chars[hexPos + 1] = ' ';
+                        chars[pos + TEXT_START_POS + c] = ' ';
+                    } else {
+                        int v = b[i++] & 0xff;
+                        chars[hexPos] = HEX_CHARS[v << 1];
+                        chars[hexPos + 1] = HEX_CHARS[(v << 1) + 1];
+                        chars[pos + TEXT_START_POS + c] = TEXT_CHARS[v];
+                    }
+                }
+                logIdx += endCol - col;
+                pos += TEXT_START_POS + endCol;
+            }
+            return pos;
+        }
+    }
+}
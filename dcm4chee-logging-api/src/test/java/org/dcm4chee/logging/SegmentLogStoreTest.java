@@ -0,0 +1,139 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trip of transaction logs written by SegmentLogStore and reconstructed by SegmentLogExtractor.
+ */
+public class SegmentLogStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("segments", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        SegmentLogStore store = new SegmentLogStore(dir, 256);
+        StringBuilder a = new StringBuilder();
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            append(store, "A", "record " + i + " of A\n", a);
+            append(store, "B", "record " + i + " of B\n", b);
+        }
+        store.endTransaction("A");
+        assertTrue(SegmentLogStore.listSegments(dir).length > 1);
+        // B is not closed yet: found by the scan of the current segment
+        assertEquals(a.toString(), extract("A", false));
+        assertEquals(b.toString(), extract("B", false));
+        store.close();
+        assertEquals(a.toString(), extract("A", false));
+        assertEquals(b.toString(), extract("B", false));
+        assertEquals(a.toString(), extract("A", true));
+        assertEquals(b.toString(), extract("B", true));
+        assertEquals("", extract("C", false));
+    }
+
+    @Test
+    public void testIndexFlushedOnEndTransaction() throws IOException {
+        SegmentLogStore store = new SegmentLogStore(dir, 65536);
+        StringBuilder a = new StringBuilder();
+        append(store, "A", "record of A\n", a);
+        store.endTransaction("A");
+        File index = new File(dir, SegmentLogStore.segmentFileName(1, SegmentLogStore.INDEX_SUFFIX));
+        assertTrue(index.length() > 0);
+        assertEquals(a.toString(), extract("A", false));
+        store.close();
+    }
+
+    @Test
+    public void testSharedDirectory() throws IOException {
+        SegmentLogStore store1 = new SegmentLogStore(dir, 65536);
+        SegmentLogStore store2 = new SegmentLogStore(dir, 65536);
+        StringBuilder a = new StringBuilder();
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            append(store1, "A", "record " + i + " of A\n", a);
+            append(store2, "B", "record " + i + " of B\n", b);
+        }
+        store1.endTransaction("A");
+        store2.endTransaction("B");
+        store1.close();
+        store2.close();
+        assertEquals(2, SegmentLogStore.listSegments(dir).length);
+        assertEquals(a.toString(), extract("A", false));
+        assertEquals(b.toString(), extract("B", false));
+    }
+
+    private static void append(SegmentLogStore store, String id, String text, StringBuilder expected) 
+            throws IOException {
+        store.append(id, id.getBytes(SegmentLogStore.UTF8), ByteBuffer.wrap(text.getBytes(SegmentLogStore.UTF8)));
+        expected.append(text);
+    }
+
+    private String extract(String id, boolean scan) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SegmentLogExtractor(dir).setScan(scan).extract(id, out);
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,195 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+/**
+ * Messages of the transformers of WriteCapture for data captured in several chunks.
+ */
+public class WriteCaptureTest {
+
+    private final List<String> messages = new ArrayList<String>();
+    private WriteCapture capture;
+
+    @Before
+    public void setUp() {
+        capture = new WriteCapture(logger(), "H:", null, 8192);
+        capture.setEnableLog(true);
+        capture.setCharset("UTF-8");
+    }
+
+    /**
+     * @return Logger with INFO enabled, which collects the messages logged with info(String).
+     */
+    private Logger logger() {
+        return (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[] { Logger.class }, 
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("info") && args.length == 1)
+                            messages.add((String) args[0]);
+                        return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+                    }
+                });
+    }
+
+    private void log(int... bytes) {
+        byte[] b = new byte[bytes.length + 2];
+        for (int i = 0; i < bytes.length; i++)
+            b[i + 1] = (byte) bytes[i];
+        // with offset: the bytes before and after the slice must not be logged
+        b[0] = 'X';
+        b[b.length - 1] = 'X';
+        capture.log(b, 1, bytes.length);
+    }
+
+    private void assertMessages(String... expected) {
+        assertEquals(Arrays.asList(expected), messages);
+    }
+
+    @Test
+    public void testTwoByteCharSplitOverTwoChunks() {
+        log('a', 0xc3);
+        log(0xa4, 'b');
+        assertMessages("H:a", "H:\u00e4b");
+    }
+
+    @Test
+    public void testThreeByteCharSplitOverThreeChunks() {
+        log('x', 0xe2);
+        log(0x82);
+        log(0xac, 'y');
+        assertMessages("H:x", "H:", "H:\u20acy");
+    }
+
+    @Test
+    public void testFourByteCharSplitOverThreeChunks() {
+        log(0xf0);
+        log(0x9f, 0x98);
+        log(0x80, 'z', 0xc3);
+        log(0xa4);
+        assertMessages("H:", "H:", "H:\ud83d\ude00z", "H:\u00e4");
+    }
+
+    @Test
+    public void testMalformedTail() {
+        // the carried over start of a sequence is not continued by the next chunk
+        log('a', 0xe2, 0x82);
+        log('b', 'c');
+        log(0xff, 'd');
+        assertMessages("H:a", "H:\ufffdbc", "H:\ufffdd");
+    }
+
+    @Test
+    public void testChunksAfterMalformedTail() {
+        log('a', 0xc3);
+        log(0xc3);
+        log(0xa4);
+        log('b');
+        assertMessages("H:a", "H:\ufffd", "H:\u00e4", "H:b");
+    }
+
+    @Test
+    public void testDirectBuffer() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(4);
+        buf.put(new byte[] { 'a', (byte) 0xe2, (byte) 0x82, (byte) 0xac }).flip();
+        buf.limit(2);
+        capture.log(buf);
+        assertEquals(0, buf.position());
+        buf.position(2).limit(4);
+        capture.log(buf);
+        assertEquals(2, buf.position());
+        assertMessages("H:a", "H:\u20ac");
+    }
+
+    @Test
+    public void testMaxLogLen() {
+        capture.setMaxLogLen(3);
+        log('a', 'b', 'c', 'd');
+        log('e');
+        assertMessages("H:abc...(truncated)");
+    }
+
+    @Test
+    public void testHexDumpContinuesOffset() {
+        capture.setTransformer(capture.new HexTransformer());
+        log('A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T');
+        log('u', 'v', 'w', 0x00, 0xff);
+        assertMessages("H:"
+                + "\n00000000 41 42 43 44 45 46 47 48 49 4a 4b 4c 4d 4e 4f 50   ABCDEFGHIJKLMNOP"
+                + "\n00000010 51 52 53 54                                       QRST",
+                "H:"
+                + "\n00000010             75 76 77 00 ff                            uvw..");
+    }
+
+    @Test
+    public void testHexDumpBlocks() {
+        capture.setTransformer(capture.new HexTransformer());
+        log(1, 2, 3);
+        capture.setMaxLogLen(300);
+        log(new int[301]);
+        assertMessages("H:"
+                + "\n00000000 01 02 03                                          ...",
+                messages.get(1), messages.get(2));
+        // blocks of 256 bytes, starting in the middle of the line of the previous chunk
+        String[] block1 = messages.get(1).split("\n");
+        assertEquals(18, block1.length);
+        assertEquals("H:", block1[0]);
+        assertEquals("00000000          00 00 00 00 00 00 00 00 00 00 00 00 00      .............", block1[1]);
+        assertEquals("00000010 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00   ................", block1[2]);
+        assertEquals("00000100 00 00 00                                          ...", block1[17]);
+        String[] block2 = messages.get(2).split("\n");
+        assertEquals(5, block2.length);
+        assertEquals("00000100          00 00 00 00 00 00 00 00 00 00 00 00 00      .............", block2[1]);
+        assertEquals("00000120 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00      ...............", block2[3]);
+        assertEquals("...(truncated)", block2[4]);
+    }
+}
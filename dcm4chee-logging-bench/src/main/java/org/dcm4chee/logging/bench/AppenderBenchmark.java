@@ -0,0 +1,149 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.dcm4chee.logging.MdcSplittingAppender;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.MDC;
+
+/**
+ * Common setup of the MdcSplittingAppender benchmarks: one handler per trial, writing to a temporary directory
+ * which is deleted afterwards. The formatter only appends a line separator to the message, so the 
+ * benchmarks measure the handler and not the formatting.
+ * 
+ * Handler properties can be changed with -p, e.g. -p async=true -p flushPolicy=BUFFER.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class AppenderBenchmark {
+
+    static final String MDC_DIR = "bench_dir";
+    static final String MDC_TRANSACTION = "bench_tx";
+    static final String MDC_CLOSE = "bench_close";
+    static final String MESSAGE = "Received DICOM association request from AE STORESCU to AE DCM4CHEE, "
+            + "presentation contexts: 12";
+
+    @Param({"false"})
+    public boolean async;
+
+    @Param({"RECORD"})
+    public String flushPolicy;
+
+    File logDir;
+    MdcSplittingAppender handler;
+
+    @Setup
+    public void createHandler() throws IOException {
+        logDir = File.createTempFile("mdc-bench", "");
+        logDir.delete();
+        logDir.mkdirs();
+        handler = new MdcSplittingAppender();
+        handler.setMdcPropertyLogDir(MDC_DIR);
+        handler.setMdcPropertyLogFilename(MDC_TRANSACTION);
+        handler.setMdcPropertyCloseLogFile(MDC_CLOSE);
+        handler.setAsync(async);
+        handler.setFlushPolicy(flushPolicy);
+        handler.setLevel(Level.ALL);
+        handler.setFormatter(new Formatter() {
+            private final String lineSeparator = System.getProperty("line.separator");
+
+            @Override
+            public String format(LogRecord record) {
+                return record.getMessage() + lineSeparator;
+            }
+        });
+        handler.setActive(true);
+    }
+
+    @TearDown
+    public void closeHandler() {
+        MDC.clear();
+        handler.close();
+        delete(logDir);
+    }
+
+    /**
+     * Route the records of the calling thread to given transaction.
+     */
+    void beginTransaction(String transactionID) {
+        MDC.put(MDC_DIR, logDir.getPath());
+        MDC.put(MDC_TRANSACTION, transactionID);
+    }
+
+    void publish() {
+        handler.publish(new LogRecord(Level.INFO, MESSAGE));
+    }
+
+    /**
+     * Publish the close record of the transaction of the calling thread, which closes its log file.
+     */
+    void endTransaction() {
+        MDC.put(MDC_CLOSE, "true");
+        handler.publish(new LogRecord(Level.INFO, "Close log"));
+        MDC.remove(MDC_CLOSE);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f : files)
+                delete(f);
+        file.delete();
+    }
+}
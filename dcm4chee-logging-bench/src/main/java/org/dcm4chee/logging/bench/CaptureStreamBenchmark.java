@@ -0,0 +1,177 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+import org.dcm4chee.logging.LoggingBufferedOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LoggingBufferedOutputStream.write with a buffer of 8192 bytes, so writeSize 16 is buffered 
+ * and writeSize 65536 is written (and logged) directly. The captured data is logged by the given transformer 
+ * to a java.util.logging handler which discards the records, and written to a stream which discards the data.
+ * 
+ * The stream is recreated for each iteration. maxLogLen of the stream is reset after each GB of written data,
+ * otherwise the default of Integer.MAX_VALUE (2 GB) is reached within an iteration of writeSize 65536 and 
+ * the rest of the iteration measures the path without logging. The handler counts the records: an iteration
+ * fails if the stream no longer logs at its end.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CaptureStreamBenchmark {
+
+    private static final String LOGGER_NAME = "org.dcm4chee.logging.bench.capture";
+    private static final java.util.logging.Logger julLogger = java.util.logging.Logger.getLogger(LOGGER_NAME);
+    private static final AtomicLong publishedRecords = new AtomicLong();
+    private static final int MAX_LOG_LEN_RESET = 1 << 30;
+
+    static {
+        julLogger.setUseParentHandlers(false);
+        julLogger.setLevel(java.util.logging.Level.INFO);
+        julLogger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                publishedRecords.incrementAndGet();
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @Param({"16", "65536"})
+    public int writeSize;
+
+    @Param({"false", "true"})
+    public boolean logEnabled;
+
+    @Param({"string", "hex"})
+    public String transformer;
+
+    private byte[] data;
+    private LoggingBufferedOutputStream stream;
+    private int written;
+
+    @Setup(Level.Iteration)
+    public void createStream() throws IOException {
+        data = new byte[writeSize];
+        Random random = new Random(0);
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (0x20 + random.nextInt(0x5f));
+        Logger log = LoggerFactory.getLogger(LOGGER_NAME);
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        stream = new LoggingBufferedOutputStream(out, log, "SEND: ", 8192);
+        if ("hex".equals(transformer))
+            stream.setTransformer(stream.new ByteArrayHexTransformer());
+        stream.setEnableLog(logEnabled);
+        written = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkLogged() throws IOException {
+        if (!logEnabled)
+            return;
+        long published = publishedRecords.get();
+        stream.write(data, 0, writeSize);
+        stream.flush();
+        if (publishedRecords.get() == published)
+            throw new IllegalStateException("maxLogLen reached: captured data no longer logged");
+    }
+
+    @Benchmark
+    public void writeArray() throws IOException {
+        stream.write(data, 0, writeSize);
+        countWritten(writeSize);
+    }
+
+    @Benchmark
+    public void writeByte() throws IOException {
+        stream.write(data[0]);
+        countWritten(1);
+    }
+
+    /**
+     * Reset maxLogLen before it is reached. Data written to the stream is logged at most once, 
+     * so the written bytes are an upper limit of the logged bytes.
+     */
+    private void countWritten(int len) {
+        written += len;
+        if (written >= MAX_LOG_LEN_RESET) {
+            stream.setMaxLogLen(Integer.MAX_VALUE);
+            written = 0;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging.bench;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * MdcSplittingAppender.publish with each thread logging to its own transaction.
+ * 
+ * newFiles=false: all records of a thread go to one long running transaction, so the log file is created once.
+ * newFiles=true:  each operation is a record plus the close record of a new transaction, so each operation
+ *                 creates and closes a log file.
+ * 
+ * distinctTransactions runs with 4 threads by default; use -t to measure the scaling with the thread count.
+ */
+public class PublishBenchmark extends AppenderBenchmark {
+
+    @Param({"false", "true"})
+    public boolean newFiles;
+
+    @State(Scope.Thread)
+    public static class Transaction {
+
+        private static final AtomicInteger threadNo = new AtomicInteger();
+
+        private String prefix;
+        private long txNo;
+
+        @Setup
+        public void begin(PublishBenchmark bench) {
+            prefix = "tx-" + threadNo.incrementAndGet() + "-";
+            bench.beginTransaction(prefix + txNo);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void singleThread(Transaction tx) {
+        publish(tx);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void distinctTransactions(Transaction tx) {
+        publish(tx);
+    }
+
+    private void publish(Transaction tx) {
+        publish();
+        if (newFiles) {
+            endTransaction();
+            beginTransaction(tx.prefix + ++tx.txNo);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging.soak;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in ns with one bucket per power of two. Recorded by many threads, 
+ * drained by the reporting thread once per report interval.
+ */
+final class Histogram {
+
+    private final AtomicLongArray counts = new AtomicLongArray(64);
+
+    void record(long nanos) {
+        counts.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+    }
+
+    /**
+     * @return Counts per bucket recorded since the last call.
+     */
+    long[] drain() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++)
+            snapshot[i] = counts.getAndSet(i, 0);
+        return snapshot;
+    }
+
+    static void add(long[] total, long[] counts) {
+        for (int i = 0; i < total.length; i++)
+            total[i] += counts[i];
+    }
+
+    /**
+     * @return Upper bound in microseconds of the bucket containing the given percentile (0 to 100), 
+     *         0 if nothing was recorded.
+     */
+    static long percentileMicros(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        int i = 0;
+        for (long count = counts[0]; count < rank && i < counts.length - 1; count += counts[++i])
+            ;
+        return ((1L << i) + 999) / 1000;
+    }
+}
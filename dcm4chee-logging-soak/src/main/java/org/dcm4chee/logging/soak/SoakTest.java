@@ -0,0 +1,345 @@
+/***** BEGIN LICENSE BLOCK *****
+   - Version: MPL 1.1/GPL 2.0/LGPL 2.1
+   -
+   - The contents of this file are subject to the Mozilla Public License Version
+   - 1.1 (the "License"); you may not use this file except in compliance with
+   - the License. You may obtain a copy of the License at
+   - http://www.mozilla.org/MPL/
+   -
+   - Software distributed under the License is distributed on an "AS IS" basis,
+   - WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+   - for the specific language governing rights and limitations under the
+   - License.
+   -
+   - The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+   - Java(TM), hosted at https://github.com/gunterze/dcm4che.
+   -
+   - The Initial Developer of the Original Code is
+   - Agfa Healthcare.
+   - Portions created by the Initial Developer are Copyright (C) 2011
+   - the Initial Developer. All Rights Reserved.
+   -
+   - Contributor(s):
+   - Franz Willer <franz.willer@gmail.com>
+   -
+   - Alternatively, the contents of this file may be used under the terms of
+   - either the GNU General Public License Version 2 or later (the "GPL"), or
+   - the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+   - in which case the provisions of the GPL or the LGPL are applicable instead
+   - of those above. If you wish to allow use of your version of this file only
+   - under the terms of either the GPL or the LGPL, and not to allow others to
+   - use your version of this file under the terms of the MPL, indicate your
+   - decision by deleting the provisions above and replace them with the notice
+   - and other provisions required by the GPL or the LGPL. If you do not delete
+   - the provisions above, a recipient may use your version of this file under
+   - the terms of any one of the MPL, the GPL or the LGPL.
+   -
+   - ***** END LICENSE BLOCK *****/
+package org.dcm4chee.logging.soak;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.LogManager;
+
+import org.dcm4chee.logging.MdcSplittingAppender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Load generator for MdcSplittingAppender, e.g. to size the handler for a production node or to reproduce 
+ * a file descriptor leak of abandoned transactions.
+ * 
+ * The handler is added to the root logger of the java.util.logging LogManager and the records are logged 
+ * by slf4j (slf4j-jdk14), as in the application server. Transactions are started at a fixed rate.
+ * Each transaction logs its records with a pause of recordInterval between them, so many transactions are 
+ * open concurrently, and ends with the close record unless it is abandoned.
+ * 
+ * Usage: java -jar soak.jar [option=value...] 
+ * duration:          Test duration in s (default: 60).
+ * rate:              Started transactions per s (default: 100).
+ * records:           Records per transaction, uniformly distributed in [min-max] (default: 10-50).
+ * recordInterval:    Pause between the records of a transaction in ms (default: 100).
+ * messageSize:       Message size in chars, uniformly distributed in [min-max] (default: 80-400).
+ * largeMessagePct:   Percentage of records with a message of largeMessageSize chars, e.g. a dump (default: 1).
+ * largeMessageSize:  Size of large messages (default: 16384).
+ * abandonPct:        Percentage of transactions which never log the close record (default: 0).
+ * threads:           Number of threads logging the records of the transactions (default: 16).
+ * reportInterval:    Interval of the report lines in s (default: 10).
+ * logDir:            Directory of the transaction logs (default: [java.io.tmpdir]/mdc-soak).
+ * handler.[name]:    Property of the handler, e.g. handler.async=true handler.idleTimeout=0.
+ * 
+ * Each report line shows the rates of the last interval, the latency of the log calls (upper bound of 
+ * a power of two bucket), the open log files and known transactions of the handler, the open file descriptors
+ * of the process, the used heap and the async queue depth.
+ */
+public class SoakTest {
+
+    private static final String MDC_DIR = "soak_dir";
+    private static final String MDC_TRANSACTION = "soak_tx";
+    private static final String MDC_CLOSE = "soak_close";
+
+    private static final Logger log = LoggerFactory.getLogger(SoakTest.class);
+
+    private final long duration;
+    private final double rate;
+    private final int minRecords;
+    private final int maxRecords;
+    private final long recordInterval;
+    private final int minMessageSize;
+    private final int maxMessageSize;
+    private final int largeMessagePct;
+    private final int largeMessageSize;
+    private final int abandonPct;
+    private final long reportInterval;
+    private final String logDir;
+    private final String message;
+
+    private final MdcSplittingAppender handler = new MdcSplittingAppender();
+    private final ScheduledExecutorService executor;
+    private final Histogram latency = new Histogram();
+    private final AtomicLong startedTransactions = new AtomicLong();
+    private final AtomicLong finishedTransactions = new AtomicLong();
+    private final AtomicInteger activeTransactions = new AtomicInteger();
+    private final AtomicLong records = new AtomicLong();
+    private long lastReport;
+    private long lastRecords;
+    private long lastTransactions;
+
+    public SoakTest(Map<String, String> options) throws Exception {
+        duration = Long.parseLong(option(options, "duration", "60"));
+        rate = Double.parseDouble(option(options, "rate", "100"));
+        String[] range = option(options, "records", "10-50").split("-");
+        minRecords = Integer.parseInt(range[0]);
+        maxRecords = Integer.parseInt(range[range.length - 1]);
+        recordInterval = Long.parseLong(option(options, "recordInterval", "100"));
+        range = option(options, "messageSize", "80-400").split("-");
+        minMessageSize = Integer.parseInt(range[0]);
+        maxMessageSize = Integer.parseInt(range[range.length - 1]);
+        largeMessagePct = Integer.parseInt(option(options, "largeMessagePct", "1"));
+        largeMessageSize = Integer.parseInt(option(options, "largeMessageSize", "16384"));
+        abandonPct = Integer.parseInt(option(options, "abandonPct", "0"));
+        reportInterval = Long.parseLong(option(options, "reportInterval", "10"));
+        logDir = option(options, "logDir", new File(System.getProperty("java.io.tmpdir"), "mdc-soak").getPath());
+        int threads = Integer.parseInt(option(options, "threads", "16"));
+        executor = Executors.newScheduledThreadPool(threads);
+        int size = Math.max(maxMessageSize, largeMessageSize);
+        StringBuilder sb = new StringBuilder(size + 64);
+        while (sb.length() < size)
+            sb.append("DICOM C-STORE RQ 1.2.840.10008.5.1.4.1.1.2 ");
+        message = sb.toString();
+        handler.setMdcPropertyLogDir(MDC_DIR);
+        handler.setMdcPropertyLogFilename(MDC_TRANSACTION);
+        handler.setMdcPropertyCloseLogFile(MDC_CLOSE);
+        handler.setFormatter(new java.util.logging.SimpleFormatter());
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (!option.getKey().startsWith("handler."))
+                throw new IllegalArgumentException("Unknown option: " + option.getKey());
+            setProperty(handler, option.getKey().substring(8), option.getValue());
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.remove(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static void setProperty(Object bean, String name, String value) throws Exception {
+        String setter = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (Method m : bean.getClass().getMethods()) {
+            if (m.getName().equals(setter) && m.getParameterTypes().length == 1) {
+                Class<?> type = m.getParameterTypes()[0];
+                if (type == int.class)
+                    m.invoke(bean, Integer.valueOf(value));
+                else if (type == long.class)
+                    m.invoke(bean, Long.valueOf(value));
+                else if (type == double.class)
+                    m.invoke(bean, Double.valueOf(value));
+                else if (type == boolean.class)
+                    m.invoke(bean, Boolean.valueOf(value));
+                else if (type == String.class)
+                    m.invoke(bean, value);
+                else if (type == java.util.logging.Level.class)
+                    m.invoke(bean, java.util.logging.Level.parse(value));
+                else
+                    continue;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unknown handler property: " + name);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("Expected option=value: " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new SoakTest(options).run();
+    }
+
+    public void run() throws InterruptedException {
+        LogManager logManager = LogManager.getLogManager();
+        try {
+            logManager.readConfiguration(new ByteArrayInputStream("handlers=\n.level=INFO\n".getBytes("ISO-8859-1")));
+        } catch (java.io.IOException e) {
+            throw new IllegalStateException(e);
+        }
+        logManager.getLogger("").addHandler(handler);
+        log.info("START_MDC_SPLITTING");
+        System.out.println("Soak test: " + duration + "s, " + rate + " tx/s, " + minRecords + "-" + maxRecords 
+                + " records/tx every " + recordInterval + "ms, " + abandonPct + "% abandoned, logs in " + logDir);
+        new File(logDir).mkdirs();
+        long start = lastReport = System.nanoTime();
+        final long tickNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        ScheduledFuture<?> arrivals = executor.scheduleAtFixedRate(new Runnable() {
+            private final long start = System.nanoTime();
+            private long started;
+
+            @Override
+            public void run() {
+                long due = (long) ((System.nanoTime() - start + tickNanos) * rate / 1000000000L);
+                for (; started < due; started++)
+                    startTransaction(started);
+            }
+        }, 0, tickNanos, TimeUnit.NANOSECONDS);
+        long[] total = new long[64];
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long next = start;
+        while ((next += TimeUnit.SECONDS.toNanos(reportInterval)) - end < 0) {
+            TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+            long[] counts = latency.drain();
+            Histogram.add(total, counts);
+            report(start, counts);
+        }
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, end - System.nanoTime()));
+        arrivals.cancel(false);
+        long timeout = System.currentTimeMillis() + maxRecords * recordInterval + 60000;
+        while (activeTransactions.get() > 0 && System.currentTimeMillis() < timeout)
+            Thread.sleep(100);
+        executor.shutdownNow();
+        long[] counts = latency.drain();
+        Histogram.add(total, counts);
+        report(start, counts);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Total: %d tx, %d records, %.0f records/s, latency us p50 %d p99 %d p99.9 %d, "
+                + "files opened %d evicted %d reopened %d, dropped records %d, I/O errors %d%n",
+                finishedTransactions.get(), records.get(), records.get() / seconds,
+                Histogram.percentileMicros(total, 50), Histogram.percentileMicros(total, 99), 
+                Histogram.percentileMicros(total, 99.9), handler.getOpenedFiles(), handler.getEvictedFiles(), 
+                handler.getReopenedFiles(), handler.getDroppedRecords(), handler.getIoErrors());
+        logManager.getLogger("").removeHandler(handler);
+        handler.close();
+    }
+
+    private void report(long start, long[] counts) {
+        long now = System.nanoTime();
+        long recordCount = records.get();
+        long transactionCount = startedTransactions.get();
+        double interval = Math.max(now - lastReport, 1) / 1e9;
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.out.printf("%6ds tx/s %6d active %6d records/s %8d latency us p50 %5d p99 %6d p99.9 %7d "
+                + "| files %6d known %6d fds %6d heap %5dMB queue %5d%n",
+                TimeUnit.NANOSECONDS.toSeconds(now - start), (long) ((transactionCount - lastTransactions) / interval), 
+                activeTransactions.get(), (long) ((recordCount - lastRecords) / interval), Histogram.percentileMicros(counts, 50),
+                Histogram.percentileMicros(counts, 99), Histogram.percentileMicros(counts, 99.9),
+                handler.getOpenFiles(), handler.getKnownTransactions(), openFileDescriptors(),
+                memory.getHeapMemoryUsage().getUsed() >> 20, handler.getQueueDepth());
+        lastReport = now;
+        lastRecords = recordCount;
+        lastTransactions = transactionCount;
+    }
+
+    /**
+     * @return Open file descriptors of the process, -1 if not supported by the JVM.
+     */
+    private static long openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        try {
+            Class<?> unixOs = Class.forName("com.sun.management.UnixOperatingSystemMXBean");
+            return unixOs.isInstance(os)
+                    ? ((Number) unixOs.getMethod("getOpenFileDescriptorCount").invoke(os)).longValue()
+                    : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private void startTransaction(long txNo) {
+        Random random = new Random(txNo);
+        int recordCount = minRecords + random.nextInt(maxRecords - minRecords + 1);
+        boolean abandon = random.nextInt(100) < abandonPct;
+        startedTransactions.incrementAndGet();
+        activeTransactions.incrementAndGet();
+        executor.execute(new Transaction("soak-" + txNo, recordCount, abandon, random));
+    }
+
+    private void publish(String msg) {
+        long start = System.nanoTime();
+        log.info(msg);
+        latency.record(System.nanoTime() - start);
+        records.incrementAndGet();
+    }
+
+    /**
+     * Logs one record of the transaction per run and schedules itself for the next record.
+     */
+    private final class Transaction implements Runnable {
+
+        private final String id;
+        private final int recordCount;
+        private final boolean abandon;
+        private final Random random;
+        private int recordNo;
+
+        Transaction(String id, int recordCount, boolean abandon, Random random) {
+            this.id = id;
+            this.recordCount = recordCount;
+            this.abandon = abandon;
+            this.random = random;
+        }
+
+        @Override
+        public void run() {
+            MDC.put(MDC_DIR, logDir);
+            MDC.put(MDC_TRANSACTION, id);
+            try {
+                if (recordNo++ < recordCount) {
+                    publish(message.substring(0, messageSize()));
+                    executor.schedule(this, recordInterval, TimeUnit.MILLISECONDS);
+                } else {
+                    if (!abandon) {
+                        MDC.put(MDC_CLOSE, "true");
+                        publish("Transaction finished");
+                        MDC.remove(MDC_CLOSE);
+                    }
+                    activeTransactions.decrementAndGet();
+                    finishedTransactions.incrementAndGet();
+                }
+            } finally {
+                MDC.remove(MDC_TRANSACTION);
+                MDC.remove(MDC_DIR);
+            }
+        }
+
+        private int messageSize() {
+            return random.nextInt(100) < largeMessagePct ? largeMessageSize
+                    : minMessageSize + random.nextInt(maxMessageSize - minMessageSize + 1);
+        }
+    }
+}